@@ -1,9 +1,11 @@
 package org.andresoviedo.google_drive_ftp_adapter;
 
 import org.andresoviedo.google_drive_ftp_adapter.controller.Controller;
-import org.andresoviedo.google_drive_ftp_adapter.model.Cache;
 import org.andresoviedo.google_drive_ftp_adapter.model.GoogleDrive;
 import org.andresoviedo.google_drive_ftp_adapter.model.GoogleDriveFactory;
+import org.andresoviedo.google_drive_ftp_adapter.model.MemoryCache;
+import org.andresoviedo.google_drive_ftp_adapter.model.RequestPriority;
+import org.andresoviedo.google_drive_ftp_adapter.model.RequestScheduler;
 import org.andresoviedo.google_drive_ftp_adapter.model.SQLiteCache;
 import org.andresoviedo.google_drive_ftp_adapter.service.FtpGdriveSynchService;
 import org.andresoviedo.google_drive_ftp_adapter.view.ftp.GFtpServerFactory;
@@ -14,7 +16,12 @@ import org.apache.ftpserver.ftplet.FtpException;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 final class GoogleDriveFtpAdapter {
 
@@ -22,6 +29,7 @@ final class GoogleDriveFtpAdapter {
 
     private final org.apache.ftpserver.FtpServer server;
     private final FtpGdriveSynchService cacheUpdater;
+    private final ScheduledExecutorService stats;
 
     GoogleDriveFtpAdapter(Properties configuration) {
 
@@ -30,18 +38,54 @@ final class GoogleDriveFtpAdapter {
             throw new IllegalArgumentException("Invalid argument. Port '" + port + "' already in used");
         }
 
-        Cache cache = new SQLiteCache(configuration);
+        MemoryCache cache = new MemoryCache(new SQLiteCache(configuration), configuration);
         GoogleDriveFactory googleDriveFactory = new GoogleDriveFactory(configuration);
         googleDriveFactory.init();
 
-        GoogleDrive googleDrive = new GoogleDrive(googleDriveFactory.getDrive());
-        cacheUpdater = new FtpGdriveSynchService(cache, googleDrive);
+        GoogleDrive googleDrive = new GoogleDrive(googleDriveFactory.getDrive(), configuration);
+        cacheUpdater = new FtpGdriveSynchService(cache, googleDrive, configuration);
         Controller controller = new Controller(cache, googleDrive, cacheUpdater);
 
         // FTP Setup
         FtpServerFactory serverFactory = new GFtpServerFactory(controller, cache, configuration, cacheUpdater);
         server = serverFactory.createServer();
 
+        // Stats
+        int statsInterval = Integer.parseInt(configuration.getProperty("stats.intervalSeconds", String.valueOf(300)));
+        stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (statsInterval > 0) {
+            stats.scheduleWithFixedDelay(() -> logStats(cache, googleDrive), statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void logStats(MemoryCache cache, GoogleDrive googleDrive) {
+        LOG.info(String.format("Memory cache. Files: %d. Folders: %d. File hit ratio: %.2f. Childs hit ratio: %.2f",
+                cache.getSize(), cache.getLoadedFolders(), cache.getFileHitRatio(), cache.getChildsHitRatio()));
+        StringBuilder requests = new StringBuilder("Drive requests dispatched (average wait).");
+        RequestScheduler scheduler = googleDrive.getRequestScheduler();
+        for (RequestPriority priority : RequestPriority.values()) {
+            requests.append(String.format(" %s: %d (%.0f millis).", priority, scheduler.getDispatched(priority),
+                    scheduler.getAverageWaitMillis(priority)));
+        }
+        LOG.info(requests);
+        LOG.info("Drive requests coalesced: " + googleDrive.getCoalescedRequests() + ". Most coalesced folders: "
+                + top(googleDrive.getCoalescedListRequests()) + ". Most coalesced files: "
+                + top(googleDrive.getCoalescedGetFileRequests()));
+    }
+
+    /**
+     * @param counts counts per id
+     * @return the ids with the highest counts
+     */
+    private static Map<String, Long> top(Map<String, Long> counts) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        counts.entrySet().stream().sorted(Map.Entry.<String, Long>comparingByValue().reversed()).limit(5)
+                .forEach(entry -> ret.put(entry.getKey(), entry.getValue()));
+        return ret;
     }
 
     private static boolean available(int port) {
@@ -63,6 +107,7 @@ final class GoogleDriveFtpAdapter {
     }
 
     void stop() {
+        stats.shutdownNow();
         cacheUpdater.stop();
         server.stop();
         LOG.info("Application stopped.");
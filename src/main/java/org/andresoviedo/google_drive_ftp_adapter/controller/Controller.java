@@ -40,6 +40,9 @@ public final class Controller {
 
     public List<GFile> getFiles(String folderId) {
 
+        // client is active, so we want the remote changes as soon as possible
+        updaterService.pollNow();
+
         forceFolderUpdate(folderId);
 
         return cache.getFiles(folderId);
@@ -112,12 +115,17 @@ public final class Controller {
         return true;
     }
 
-    // TODO: Implement offset?
-    public InputStream createInputStream(GFile gFile) {
-        LOG.info("Downloading file " + gFile.getId() + "...");
+    public InputStream createInputStream(GFile gFile, long offset) {
+        LOG.info("Downloading file " + gFile.getId() + " from offset " + offset + "...");
+        updaterService.pollNow();
 
         // return this wrapper just to be aware when there is a connection error
-        return new CallbackInputStream(googleDrive.downloadFile(gFile), (na) -> {
+        // the change feed could be behind, so we keep the metadata found while downloading
+        return new CallbackInputStream(googleDrive.downloadFile(gFile, offset, refreshedFile -> {
+            LOG.info("Updating stale file " + refreshedFile.getId() + " in cache...");
+            refreshedFile.setRevision(cache.getRevision());
+            cache.addOrUpdateFile(refreshedFile);
+        }), (na) -> {
             LOG.info("Input stream closed");
             return null;
         });
@@ -0,0 +1,56 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the delay is a random value between 0 and
+ * <code>min(maxDelay, baseDelay * 2^attempt)</code>, so threads failing at the same time don't retry at the same time.
+ * The number of attempts depends on the type of error.
+ *
+ * @author andresoviedo
+ */
+public final class BackoffRetryPolicy implements RetryPolicy {
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final Map<ErrorClass, Integer> maxAttempts;
+
+    /**
+     * @param baseDelay   millis of the first backoff window
+     * @param maxDelay    max millis of the backoff window
+     * @param maxAttempts max number of attempts per type of error (errors not in the map are not retried)
+     */
+    public BackoffRetryPolicy(long baseDelay, long maxDelay, Map<ErrorClass, Integer> maxAttempts) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = new EnumMap<>(maxAttempts);
+    }
+
+    public static BackoffRetryPolicy fromConfiguration(Properties configuration) {
+        Map<ErrorClass, Integer> maxAttempts = new EnumMap<>(ErrorClass.class);
+        maxAttempts.put(ErrorClass.SERVER_ERROR, 5);
+        maxAttempts.put(ErrorClass.RATE_LIMITED, 8);
+        maxAttempts.put(ErrorClass.TIMEOUT, 4);
+        maxAttempts.put(ErrorClass.NETWORK, 4);
+        return new BackoffRetryPolicy(
+                Long.parseLong(configuration.getProperty("google.retry.baseDelay", "500")),
+                Long.parseLong(configuration.getProperty("google.retry.maxDelay", "32000")),
+                maxAttempts);
+    }
+
+    @Override
+    public long nextDelay(ErrorClass errorClass, int attempt) {
+        Integer max = maxAttempts.get(errorClass);
+        if (max == null || attempt >= max) {
+            return -1;
+        }
+        // avoid overflow for big attempt numbers
+        long window = attempt >= 30 ? maxDelay : Math.min(maxDelay, baseDelay << attempt);
+        return ThreadLocalRandom.current().nextLong(window + 1);
+    }
+}
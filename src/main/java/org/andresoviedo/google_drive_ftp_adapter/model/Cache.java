@@ -4,6 +4,7 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface Cache {
 
@@ -23,14 +24,124 @@ public interface Cache {
 
     int addOrUpdateFile(GFile rootFile);
 
+    /**
+     * Add or update all the files (and their parents) in the same transaction
+     *
+     * @param files files to add or update
+     * @return number of affected records
+     */
+    int addOrUpdateFiles(List<GFile> files);
+
     int deleteFile(String id);
 
     String getRevision();
 
     void updateRevision(String revision);
 
+    /**
+     * Apply a page of changes and update the revision in the same transaction. If a file changed several times only
+     * the last change is applied. Folders not in the cache are added without revision, so they are synchronized
+     * afterwards.
+     *
+     * @param changes  the changes
+     * @param revision the revision to continue from after the changes
+     */
+    void applyChanges(List<GChange> changes, String revision);
+
+    /**
+     * Like {@link #applyChanges(List, String)}, but without waiting for the changes to be written. Writes are done in
+     * the order they are submitted.
+     *
+     * @param changes  the changes
+     * @param revision the revision to continue from after the changes
+     * @return future completed when the changes are written
+     */
+    default CompletableFuture<Void> applyChangesAsync(List<GChange> changes, String revision) {
+        applyChanges(changes, revision);
+        return CompletableFuture.completedFuture(null);
+    }
+
     List<String> getAllFoldersWithoutRevision();
 
+    /**
+     * Remove the children of the folder (unless they are also in other folders) and clear its revision, so it has to
+     * be synchronized again
+     *
+     * @param folderId the folder
+     */
+    void evictFolder(String folderId);
+
+    /**
+     * Add folders to the crawl frontier, unless they are already there
+     *
+     * @param folderIds the folders pending to crawl
+     */
+    void addToCrawlFrontier(List<String> folderIds);
+
+    /**
+     * Get the folders pending to crawl. Folders whose listing was interrupted go first, grouped together and in the
+     * same order they were listed. Groups are never split, so there can be more folders than the max if the first
+     * group is bigger.
+     *
+     * Folders whose last crawl failed are skipped until it's time to retry them.
+     *
+     * @param max max number of folders
+     * @return the folders pending to crawl
+     */
+    List<CrawlFrontierEntry> getCrawlFrontier(int max);
+
+    /**
+     * Save a page of the children of a group of folders and the token of the next page in the same transaction, so the
+     * listing can be resumed after a restart. Subfolders not synchronized yet are added to the crawl frontier.
+     *
+     * @param groupId       id of the group of folders
+     * @param folderIds     the folders listed together
+     * @param childs        the children found in the page
+     * @param nextPageToken token of the next page or <code>null</code> if it was the last one
+     */
+    void saveCrawlPage(String groupId, List<String> folderIds, List<GFile> childs, String nextPageToken);
+
+    /**
+     * Like {@link #saveCrawlPage(String, List, List, String)}, but without waiting for the page to be written. Writes
+     * are done in the order they are submitted.
+     *
+     * @param groupId       id of the group of folders
+     * @param folderIds     the folders listed together
+     * @param childs        the children found in the page
+     * @param nextPageToken token of the next page or <code>null</code> if it was the last one
+     * @return future completed when the page is written
+     */
+    default CompletableFuture<Void> saveCrawlPageAsync(String groupId, List<String> folderIds, List<GFile> childs,
+                                                      String nextPageToken) {
+        saveCrawlPage(groupId, folderIds, childs, nextPageToken);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Update the folders with their revision and remove them from the crawl frontier in the same transaction
+     *
+     * @param folders the folders already listed
+     */
+    void completeCrawl(List<GFile> folders);
+
+    /**
+     * Count a failed attempt to crawl the folders. The page token is kept, so the next attempt resumes the listing.
+     * The folders are retried after the backoff, which doubles on every failure in a row up to the max backoff. A page
+     * saved successfully resets the count.
+     *
+     * @param folderIds  the folders
+     * @param backoff    millis to wait before the first retry
+     * @param maxBackoff max millis to wait before a retry
+     */
+    void failCrawl(List<String> folderIds, long backoff, long maxBackoff);
+
+    /**
+     * Remove folders that don't have to be crawled anymore from the crawl frontier
+     *
+     * @param folderIds the folders
+     */
+    void removeFromCrawlFrontier(List<String> folderIds);
+
     void updateChilds(GFile file, List<GFile> newChilds);
 
     Set<String> getParents(String id);
@@ -0,0 +1,966 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Compact in-memory index of the drive tree, so the metadata of millions of files fits in the heap.
+ * <p>
+ * Instead of a {@link GFile} per file (with its strings, boxed fields and set of parents), every file is a node
+ * handle (an int) into parallel primitive arrays. Ids, names and md5 checksums are stored as bytes in an arena (google
+ * ids packed in 6 bits per char, and the most common extensions of the names in a single byte), mime types are
+ * interned, revisions (page tokens) are stored as numbers, and the parent-child links are linked lists of edges in int
+ * arrays. Ids are found with an open addressing hash table of node handles, and the children of a folder by name with
+ * another one of edge handles, so path resolution doesn't scan the folders.
+ * <p>
+ * Measured with the CompactTreeIndexBenchmark (1 million files with google ids), a file takes 244 bytes vs 388 bytes
+ * of a {@link GFile} (37% less), so about 4.4 million files fit in a gigabyte.
+ * <p>
+ * It exposes the same read methods as the {@link Cache}, building the {@link GFile}s on demand. Values replaced or
+ * removed are garbage in the arena, which is compacted when they are more than half of it.
+ * <p>
+ * It's not thread safe: reads don't modify it, so they can run concurrently, but writes have to be done alone (i.e.
+ * the {@link MemoryCache} guards it with its read-write lock).
+ *
+ * @author andresoviedo
+ */
+public final class CompactTreeIndex {
+
+    private static final int NONE = -1;
+
+    private static final long NO_REVISION = Long.MIN_VALUE;
+
+    private static final byte DIRECTORY = 1;
+
+    /**
+     * The md5 checksum is stored as 16 raw bytes instead of 32 hex chars
+     */
+    private static final byte MD5_RAW = 2;
+
+    /**
+     * The node is the parent of some files but the folder itself is not in the index
+     */
+    private static final byte PLACEHOLDER = 4;
+
+    /**
+     * The revision is not a number, so it's stored in the arena and the revision is its offset
+     */
+    private static final byte REVISION_REF = 8;
+
+    /**
+     * The node was removed and it's in the free list
+     */
+    private static final byte FREE = 16;
+
+    /**
+     * The arena is not compacted while the garbage is smaller than this
+     */
+    private static final int MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    private static final byte[] ID_VALUES = new byte[128];
+
+    /**
+     * First byte of the packed ids: the id has as many chars as fit in its bits, or one less
+     */
+    private static final byte ID_MARKER = (byte) 0xC0;
+
+    private static final byte ID_MARKER_SHORT = (byte) 0xC1;
+
+    /**
+     * Extensions replaced by a single byte at the end of the names (0xF5 to 0xFF, which are never in UTF-8)
+     */
+    private static final String[] EXTENSIONS = {".jpg", ".JPG", ".jpeg", ".png", ".pdf", ".mp4", ".mov", ".txt",
+            ".docx", ".xlsx", ".zip"};
+
+    private static final int EXTENSION_CODE = 0xF5;
+
+    static {
+        Arrays.fill(ID_VALUES, (byte) -1);
+        for (int i = 0; i < ID_CHARS.length(); i++) {
+            ID_VALUES[ID_CHARS.charAt(i)] = (byte) i;
+        }
+    }
+
+    // nodes (struct of arrays)
+    private int[] idHash;
+    private int[] idRef;
+    private int[] nameRef;
+    private int[] nameHash;
+    private int[] md5Ref;
+    private long[] size;
+    private long[] lastModified;
+    private int[] mimeType;
+    private long[] revision;
+    private byte[] flags;
+    private int[] firstChildEdge;
+    private int[] firstParentEdge;
+
+    /**
+     * Nodes used so far. Free nodes are reused before using new ones
+     */
+    private int nodesUsed;
+
+    private int freeNode = NONE;
+
+    private int nodeCount;
+
+    // parent-child links (struct of arrays)
+    private int[] edgeParent;
+    private int[] edgeChild;
+    private int[] nextSiblingEdge;
+    private int[] nextParentEdge;
+
+    private int edgesUsed;
+
+    private int freeEdge = NONE;
+
+    /**
+     * Nodes by id
+     */
+    private final HandleTable ids;
+
+    /**
+     * Edges by parent and name of the child
+     */
+    private final HandleTable names;
+
+    private ByteArena arena = new ByteArena(64 * 1024);
+
+    private final StringPool mimeTypes = new StringPool();
+
+    public CompactTreeIndex() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedFiles expected number of files, so the arrays don't grow while filling the index
+     */
+    public CompactTreeIndex(int expectedFiles) {
+        int capacity = Math.max(16, expectedFiles);
+        growNodes(capacity);
+        growEdges(capacity);
+        ids = new HandleTable(capacity, node -> idHash[node]);
+        names = new HandleTable(capacity, this::edgeHash);
+    }
+
+    /**
+     * Add or update the file. If it has parents, they replace the ones it had
+     *
+     * @param file the file
+     */
+    public void put(GFile file) {
+        putNode(file);
+        compactIfNeeded();
+    }
+
+    /**
+     * Replace the children of the folder and update the folder itself, like {@link Cache#updateChilds(GFile, List)}
+     *
+     * @param folder the folder
+     * @param childs the new children
+     */
+    public void updateChilds(GFile folder, List<GFile> childs) {
+        int node = putNode(folder);
+        unlinkChilds(node);
+        for (GFile child : childs) {
+            int childNode = putNode(child);
+            if (child.getParents() == null || !child.getParents().contains(folder.getId())) {
+                link(node, childNode);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Replace the children of the folder, without updating the folder itself (it's added as a placeholder if it's not
+     * in the index). The other parents of the children are kept, unless the children have parents.
+     *
+     * @param folderId the folder
+     * @param childs   the new children
+     * @return ids of the previous children that are not in any folder anymore
+     */
+    public List<String> replaceChilds(String folderId, List<GFile> childs) {
+        int node = findOrAdd(folderId);
+        List<Integer> previous = new ArrayList<>();
+        for (int edge = firstChildEdge[node]; edge != NONE; edge = nextSiblingEdge[edge]) {
+            previous.add(edgeChild[edge]);
+        }
+        unlinkChilds(node);
+        for (GFile child : childs) {
+            link(node, putNode(child));
+        }
+        List<String> ret = new ArrayList<>();
+        for (int child : previous) {
+            if ((flags[child] & FREE) == 0 && firstParentEdge[child] == NONE) {
+                ret.add(idOf(child));
+            }
+        }
+        compactIfNeeded();
+        return ret;
+    }
+
+    /**
+     * Unlink the children of the folder
+     *
+     * @param folderId the folder
+     * @return ids of the children that are not in any folder anymore
+     */
+    public List<String> removeChilds(String folderId) {
+        int node = find(folderId);
+        if (node == NONE) {
+            return new ArrayList<>();
+        }
+        List<String> ret = new ArrayList<>();
+        while (firstChildEdge[node] != NONE) {
+            int child = edgeChild[firstChildEdge[node]];
+            unlink(firstChildEdge[node]);
+            if (firstParentEdge[child] == NONE) {
+                ret.add(idOf(child));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove the file and its links to its parents and children, like {@link Cache#deleteFile(String)}
+     *
+     * @param id the file
+     * @return <code>true</code> if the file was in the index
+     */
+    public boolean remove(String id) {
+        int node = find(id);
+        if (node == NONE) {
+            return false;
+        }
+        unlinkChilds(node);
+        while (firstParentEdge[node] != NONE) {
+            unlink(firstParentEdge[node]);
+        }
+        ids.remove(node);
+        arena.release(idRef[node]);
+        if (nameRef[node] != NONE) {
+            arena.release(nameRef[node]);
+        }
+        if (md5Ref[node] != NONE) {
+            arena.release(md5Ref[node]);
+        }
+        if ((flags[node] & REVISION_REF) != 0) {
+            arena.release((int) revision[node]);
+        }
+        flags[node] = FREE;
+        firstChildEdge[node] = freeNode;
+        freeNode = node;
+        nodeCount--;
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * @param id the file
+     * @return <code>true</code> if the file is in the index, and not just as the parent of other files
+     */
+    public boolean contains(String id) {
+        int node = find(id);
+        return node != NONE && (flags[node] & PLACEHOLDER) == 0;
+    }
+
+    public GFile getFile(String id) {
+        int node = find(id);
+        return node == NONE || (flags[node] & PLACEHOLDER) != 0 ? null : toGFile(node);
+    }
+
+    public List<GFile> getFiles(String folderId) {
+        int node = find(folderId);
+        if (node == NONE) {
+            return new ArrayList<>();
+        }
+        List<GFile> ret = new ArrayList<>();
+        for (int edge = firstChildEdge[node]; edge != NONE; edge = nextSiblingEdge[edge]) {
+            ret.add(toGFile(edgeChild[edge]));
+        }
+        return ret;
+    }
+
+    /**
+     * @param parentId parent folder id
+     * @param filename filename
+     * @return the file if found or null otherwise
+     * @throws IncorrectResultSizeDataAccessException if there is more than 1 file with the same name in the folder
+     */
+    public GFile getFileByName(String parentId, String filename) throws IncorrectResultSizeDataAccessException {
+        final byte[] name = encodeName(filename);
+        final int hash = hash(name);
+        int parent = find(parentId);
+        if (parent == NONE) {
+            return null;
+        }
+        int found = NONE;
+        int count = 0;
+        for (int slot = names.first(edgeHash(parent, hash)); names.get(slot) != NONE; slot = names.next(slot)) {
+            int edge = names.get(slot);
+            int child = edgeChild[edge];
+            if (edgeParent[edge] == parent && nameHash[child] == hash && arena.equals(nameRef[child], name)) {
+                found = child;
+                count++;
+            }
+        }
+        if (count > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, count);
+        }
+        return found == NONE ? null : toGFile(found);
+    }
+
+    public Set<String> getParents(String id) {
+        int node = find(id);
+        return node == NONE ? new HashSet<>() : parentsOf(node);
+    }
+
+    public List<String> getAllFoldersWithoutRevision() {
+        List<String> ret = new ArrayList<>();
+        for (int node = 0; node < nodesUsed; node++) {
+            if ((flags[node] & (DIRECTORY | PLACEHOLDER | FREE | REVISION_REF)) == DIRECTORY
+                    && revision[node] == NO_REVISION) {
+                ret.add(idOf(node));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of files in the index, including the folders that are only known as parents
+     */
+    public int size() {
+        return nodeCount;
+    }
+
+    /**
+     * @return bytes taken by the names, ids and checksums, including the garbage not compacted yet
+     */
+    public long getArenaSize() {
+        return arena.size;
+    }
+
+    private int putNode(GFile file) {
+        int node = findOrAdd(file.getId());
+        flags[node] &= ~PLACEHOLDER;
+        final byte[] name = encodeName(file.getName());
+        if (nameRef[node] == NONE || !arena.equals(nameRef[node], name)) {
+            // the name is part of the key of the links to the parents
+            for (int edge = firstParentEdge[node]; edge != NONE; edge = nextParentEdge[edge]) {
+                names.remove(edge);
+            }
+            if (nameRef[node] != NONE) {
+                arena.release(nameRef[node]);
+            }
+            nameRef[node] = arena.add(name);
+            nameHash[node] = hash(name);
+            for (int edge = firstParentEdge[node]; edge != NONE; edge = nextParentEdge[edge]) {
+                names.add(edge);
+            }
+        }
+        setMd5(node, file.getMd5Checksum());
+        setRevision(node, file.getRevision());
+        flags[node] = (byte) (file.isDirectory() ? flags[node] | DIRECTORY : flags[node] & ~DIRECTORY);
+        size[node] = file.getSize();
+        lastModified[node] = file.getLastModified();
+        mimeType[node] = mimeTypes.intern(file.getMimeType());
+
+        if (file.getParents() != null) {
+            while (firstParentEdge[node] != NONE) {
+                unlink(firstParentEdge[node]);
+            }
+            for (String parentId : file.getParents()) {
+                link(findOrAdd(parentId), node);
+            }
+        }
+        return node;
+    }
+
+    private void setMd5(int node, String md5Checksum) {
+        if (md5Checksum == null) {
+            if (md5Ref[node] != NONE) {
+                arena.release(md5Ref[node]);
+            }
+            md5Ref[node] = NONE;
+            flags[node] &= ~MD5_RAW;
+            return;
+        }
+        byte[] raw = decodeHex(md5Checksum);
+        byte flag = MD5_RAW;
+        if (raw == null || raw.length != 16) {
+            raw = md5Checksum.getBytes(StandardCharsets.UTF_8);
+            flag = 0;
+        }
+        if (md5Ref[node] != NONE && (flags[node] & MD5_RAW) == flag && arena.equals(md5Ref[node], raw)) {
+            return;
+        }
+        if (md5Ref[node] != NONE) {
+            arena.release(md5Ref[node]);
+        }
+        md5Ref[node] = arena.add(raw);
+        flags[node] = (byte) ((flags[node] & ~MD5_RAW) | flag);
+    }
+
+    private void setRevision(int node, String value) {
+        final long number = value == null ? NO_REVISION : parseRevision(value);
+        if ((flags[node] & REVISION_REF) != 0) {
+            if (value != null && number == NO_REVISION && arena.equals((int) revision[node], value.getBytes(StandardCharsets.UTF_8))) {
+                return;
+            }
+            arena.release((int) revision[node]);
+            flags[node] &= ~REVISION_REF;
+        }
+        if (value != null && number == NO_REVISION) {
+            revision[node] = arena.add(value.getBytes(StandardCharsets.UTF_8));
+            flags[node] |= REVISION_REF;
+        } else {
+            revision[node] = number;
+        }
+    }
+
+    private String getRevision(int node) {
+        if ((flags[node] & REVISION_REF) != 0) {
+            return arena.getString((int) revision[node]);
+        }
+        return revision[node] == NO_REVISION ? null : Long.toString(revision[node]);
+    }
+
+    /**
+     * @return the revision as a number, or {@link #NO_REVISION} if it's not a number that is written the same way back
+     */
+    private static long parseRevision(String value) {
+        if (value.isEmpty() || value.length() > 18 || value.length() > 1 && value.charAt(0) == '0') {
+            return NO_REVISION;
+        }
+        long ret = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_REVISION;
+            }
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
+    }
+
+    private GFile toGFile(int node) {
+        GFile ret = new GFile(parentsOf(node), decodeName(arena.getBytes(nameRef[node])));
+        ret.setId(idOf(node));
+        ret.setRevision(getRevision(node));
+        ret.setDirectory((flags[node] & DIRECTORY) != 0);
+        ret.setSize(size[node]);
+        ret.setLastModified(lastModified[node]);
+        ret.setMimeType(mimeTypes.get(mimeType[node]));
+        if (md5Ref[node] != NONE) {
+            ret.setMd5Checksum((flags[node] & MD5_RAW) != 0 ? encodeHex(arena.getBytes(md5Ref[node]))
+                    : arena.getString(md5Ref[node]));
+        }
+        ret.setExists(true);
+        return ret;
+    }
+
+    private String idOf(int node) {
+        return decodeId(arena.getBytes(idRef[node]));
+    }
+
+    private Set<String> parentsOf(int node) {
+        Set<String> ret = new HashSet<>(2);
+        for (int edge = firstParentEdge[node]; edge != NONE; edge = nextParentEdge[edge]) {
+            ret.add(idOf(edgeParent[edge]));
+        }
+        return ret;
+    }
+
+    /**
+     * Copy the live values to a new arena when most of it is garbage
+     */
+    private void compactIfNeeded() {
+        if (arena.garbage < MIN_COMPACTION_GARBAGE || arena.garbage * 2 < arena.size) {
+            return;
+        }
+        ByteArena compacted = new ByteArena(Math.max(64 * 1024, (arena.size - arena.garbage) / 4 * 5));
+        for (int node = 0; node < nodesUsed; node++) {
+            if ((flags[node] & FREE) != 0) {
+                continue;
+            }
+            idRef[node] = compacted.copy(arena, idRef[node]);
+            if (nameRef[node] != NONE) {
+                nameRef[node] = compacted.copy(arena, nameRef[node]);
+            }
+            if (md5Ref[node] != NONE) {
+                md5Ref[node] = compacted.copy(arena, md5Ref[node]);
+            }
+            if ((flags[node] & REVISION_REF) != 0) {
+                revision[node] = compacted.copy(arena, (int) revision[node]);
+            }
+        }
+        arena = compacted;
+    }
+
+    // ------------------------------------------------------------------------------------------------- nodes & edges
+
+    private int findOrAdd(String id) {
+        int node = find(id);
+        if (node != NONE) {
+            return node;
+        }
+        if (freeNode != NONE) {
+            node = freeNode;
+            freeNode = firstChildEdge[node];
+        } else {
+            if (nodesUsed == idRef.length) {
+                growNodes(idRef.length * 2);
+            }
+            node = nodesUsed++;
+        }
+        idHash[node] = hash(id);
+        idRef[node] = arena.add(encodeId(id));
+        nameRef[node] = NONE;
+        nameHash[node] = 0;
+        md5Ref[node] = NONE;
+        size[node] = 0;
+        lastModified[node] = 0;
+        mimeType[node] = NONE;
+        revision[node] = NO_REVISION;
+        flags[node] = PLACEHOLDER;
+        firstChildEdge[node] = NONE;
+        firstParentEdge[node] = NONE;
+        nodeCount++;
+        ids.add(node);
+        return node;
+    }
+
+    private void growNodes(int capacity) {
+        idHash = Arrays.copyOf(idHash == null ? new int[0] : idHash, capacity);
+        idRef = Arrays.copyOf(idRef == null ? new int[0] : idRef, capacity);
+        nameRef = Arrays.copyOf(nameRef == null ? new int[0] : nameRef, capacity);
+        nameHash = Arrays.copyOf(nameHash == null ? new int[0] : nameHash, capacity);
+        md5Ref = Arrays.copyOf(md5Ref == null ? new int[0] : md5Ref, capacity);
+        size = Arrays.copyOf(size == null ? new long[0] : size, capacity);
+        lastModified = Arrays.copyOf(lastModified == null ? new long[0] : lastModified, capacity);
+        mimeType = Arrays.copyOf(mimeType == null ? new int[0] : mimeType, capacity);
+        revision = Arrays.copyOf(revision == null ? new long[0] : revision, capacity);
+        flags = Arrays.copyOf(flags == null ? new byte[0] : flags, capacity);
+        firstChildEdge = Arrays.copyOf(firstChildEdge == null ? new int[0] : firstChildEdge, capacity);
+        firstParentEdge = Arrays.copyOf(firstParentEdge == null ? new int[0] : firstParentEdge, capacity);
+    }
+
+    private void growEdges(int capacity) {
+        edgeParent = Arrays.copyOf(edgeParent == null ? new int[0] : edgeParent, capacity);
+        edgeChild = Arrays.copyOf(edgeChild == null ? new int[0] : edgeChild, capacity);
+        nextSiblingEdge = Arrays.copyOf(nextSiblingEdge == null ? new int[0] : nextSiblingEdge, capacity);
+        nextParentEdge = Arrays.copyOf(nextParentEdge == null ? new int[0] : nextParentEdge, capacity);
+    }
+
+    private void link(int parent, int child) {
+        for (int edge = firstParentEdge[child]; edge != NONE; edge = nextParentEdge[edge]) {
+            if (edgeParent[edge] == parent) {
+                return;
+            }
+        }
+        int edge;
+        if (freeEdge != NONE) {
+            edge = freeEdge;
+            freeEdge = nextSiblingEdge[edge];
+        } else {
+            if (edgesUsed == edgeParent.length) {
+                growEdges(edgeParent.length * 2);
+            }
+            edge = edgesUsed++;
+        }
+        edgeParent[edge] = parent;
+        edgeChild[edge] = child;
+        nextSiblingEdge[edge] = firstChildEdge[parent];
+        firstChildEdge[parent] = edge;
+        nextParentEdge[edge] = firstParentEdge[child];
+        firstParentEdge[child] = edge;
+        names.add(edge);
+    }
+
+    private void unlinkChilds(int node) {
+        while (firstChildEdge[node] != NONE) {
+            unlink(firstChildEdge[node]);
+        }
+    }
+
+    private void unlink(int edge) {
+        names.remove(edge);
+        // remove the edge from the children of the parent and from the parents of the child
+        final int parent = edgeParent[edge];
+        if (firstChildEdge[parent] == edge) {
+            firstChildEdge[parent] = nextSiblingEdge[edge];
+        } else {
+            int previous = firstChildEdge[parent];
+            while (nextSiblingEdge[previous] != edge) {
+                previous = nextSiblingEdge[previous];
+            }
+            nextSiblingEdge[previous] = nextSiblingEdge[edge];
+        }
+        final int child = edgeChild[edge];
+        if (firstParentEdge[child] == edge) {
+            firstParentEdge[child] = nextParentEdge[edge];
+        } else {
+            int previous = firstParentEdge[child];
+            while (nextParentEdge[previous] != edge) {
+                previous = nextParentEdge[previous];
+            }
+            nextParentEdge[previous] = nextParentEdge[edge];
+        }
+        nextSiblingEdge[edge] = freeEdge;
+        freeEdge = edge;
+    }
+
+    // -------------------------------------------------------------------------------------------------- hash tables
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] bytes) {
+        int h = Arrays.hashCode(bytes);
+        return h ^ (h >>> 16);
+    }
+
+    private int edgeHash(int edge) {
+        return edgeHash(edgeParent[edge], nameHash[edgeChild[edge]]);
+    }
+
+    private static int edgeHash(int parent, int nameHash) {
+        int h = (parent * 0x9E3779B9 + nameHash) * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    private int find(String id) {
+        final int h = hash(id);
+        final byte[] key = encodeId(id);
+        for (int slot = ids.first(h); ids.get(slot) != NONE; slot = ids.next(slot)) {
+            int node = ids.get(slot);
+            if (idHash[node] == h && arena.equals(idRef[node], key)) {
+                return node;
+            }
+        }
+        return NONE;
+    }
+
+    // ------------------------------------------------------------------------------------------------------ helpers
+
+    /**
+     * Ids made of the chars of the google ids (base64url) take 6 bits per char, after a marker telling how many chars
+     * there are. Other ids are stored as UTF-8, which never starts with the markers
+     */
+    private static byte[] encodeId(String id) {
+        if (id.length() < 8) {
+            return id.getBytes(StandardCharsets.UTF_8);
+        }
+        final int bytes = (id.length() * 6 + 7) / 8;
+        final byte[] ret = new byte[1 + bytes];
+        ret[0] = bytes * 8 / 6 == id.length() ? ID_MARKER : ID_MARKER_SHORT;
+        int buffer = 0;
+        int bits = 0;
+        int position = 1;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            int value = c < ID_VALUES.length ? ID_VALUES[c] : -1;
+            if (value == -1) {
+                return id.getBytes(StandardCharsets.UTF_8);
+            }
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                ret[position++] = (byte) (buffer >>> bits);
+            }
+        }
+        if (bits > 0) {
+            ret[position] = (byte) (buffer << (8 - bits));
+        }
+        return ret;
+    }
+
+    private static String decodeId(byte[] value) {
+        if (value.length == 0 || value[0] != ID_MARKER && value[0] != ID_MARKER_SHORT) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        final int length = (value.length - 1) * 8 / 6 - (value[0] == ID_MARKER ? 0 : 1);
+        final char[] ret = new char[length];
+        int buffer = 0;
+        int bits = 0;
+        int position = 1;
+        for (int i = 0; i < length; i++) {
+            if (bits < 6) {
+                buffer = (buffer << 8) | (value[position++] & 0xFF);
+                bits += 8;
+            }
+            bits -= 6;
+            ret[i] = ID_CHARS.charAt((buffer >>> bits) & 0x3F);
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Names ending with one of the most common extensions take a single byte for it, one that never appears in UTF-8
+     */
+    private static byte[] encodeName(String name) {
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            if (name.endsWith(EXTENSIONS[i])) {
+                byte[] base = name.substring(0, name.length() - EXTENSIONS[i].length()).getBytes(StandardCharsets.UTF_8);
+                byte[] ret = Arrays.copyOf(base, base.length + 1);
+                ret[base.length] = (byte) (EXTENSION_CODE + i);
+                return ret;
+            }
+        }
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decodeName(byte[] value) {
+        int code = value.length == 0 ? -1 : (value[value.length - 1] & 0xFF) - EXTENSION_CODE;
+        if (code < 0 || code >= EXTENSIONS.length) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        return new String(value, 0, value.length - 1, StandardCharsets.UTF_8) + EXTENSIONS[code];
+    }
+
+    private static byte[] decodeHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] ret = new byte[hex.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1 || Character.isUpperCase(hex.charAt(i * 2))
+                    || Character.isUpperCase(hex.charAt(i * 2 + 1))) {
+                return null;
+            }
+            ret[i] = (byte) ((high << 4) | low);
+        }
+        return ret;
+    }
+
+    private static String encodeHex(byte[] bytes) {
+        char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            ret[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            ret[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Open addressing hash table of handles (nodes or edges) with linear probing. The hash of every handle is
+     * calculated from the index arrays, and deletions shift back the following entries instead of leaving tombstones
+     */
+    private static final class HandleTable {
+
+        private final IntUnaryOperator hashOf;
+
+        /**
+         * Handle + 1, or 0 if the slot is empty
+         */
+        private int[] slots;
+
+        private int count;
+
+        HandleTable(int expected, IntUnaryOperator hashOf) {
+            this.hashOf = hashOf;
+            this.slots = new int[Integer.highestOneBit(expected * 2 - 1) << 1];
+        }
+
+        int first(int hash) {
+            return hash & (slots.length - 1);
+        }
+
+        int next(int slot) {
+            return (slot + 1) & (slots.length - 1);
+        }
+
+        /**
+         * @return the handle in the slot or {@link #NONE} if it's empty
+         */
+        int get(int slot) {
+            return slots[slot] - 1;
+        }
+
+        void add(int handle) {
+            if ((count + 1) * 2 > slots.length) {
+                int[] old = slots;
+                slots = new int[old.length * 2];
+                for (int entry : old) {
+                    if (entry != 0) {
+                        insert(entry - 1);
+                    }
+                }
+            }
+            insert(handle);
+            count++;
+        }
+
+        private void insert(int handle) {
+            int slot = first(hashOf.applyAsInt(handle));
+            while (slots[slot] != 0) {
+                slot = next(slot);
+            }
+            slots[slot] = handle + 1;
+        }
+
+        void remove(int handle) {
+            final int mask = slots.length - 1;
+            int slot = first(hashOf.applyAsInt(handle));
+            while (slots[slot] != handle + 1) {
+                slot = next(slot);
+            }
+            // shift back the following entries of the probe sequence, so lookups don't stop at the hole
+            int hole = slot;
+            for (int next = next(hole); slots[next] != 0; next = next(next)) {
+                int home = first(hashOf.applyAsInt(slots[next] - 1));
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    slots[hole] = slots[next];
+                    hole = next;
+                }
+            }
+            slots[hole] = 0;
+            count--;
+        }
+    }
+
+    /**
+     * Byte storage where values are appended. Every value is its length (a varint) followed by its bytes, and it's
+     * referenced by its offset. Released values are just counted as garbage, until the arena is compacted
+     */
+    private static final class ByteArena {
+
+        private byte[] bytes;
+
+        private int size;
+
+        private int garbage;
+
+        ByteArena(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        int add(byte[] value) {
+            ensureCapacity(value.length + 5);
+            final int offset = size;
+            int length = value.length;
+            while ((length & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            bytes[size++] = (byte) length;
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+            return offset;
+        }
+
+        /**
+         * Copy a value from another arena
+         *
+         * @return offset of the value in this arena
+         */
+        int copy(ByteArena from, int offset) {
+            long location = from.locate(offset);
+            int length = (int) location - offset + (int) (location >>> 32);
+            ensureCapacity(length);
+            System.arraycopy(from.bytes, offset, bytes, size, length);
+            size += length;
+            return size - length;
+        }
+
+        void release(int offset) {
+            long location = locate(offset);
+            garbage += (int) location - offset + (int) (location >>> 32);
+        }
+
+        private void ensureCapacity(int length) {
+            if (size + length <= bytes.length) {
+                return;
+            }
+            // it grows by half, so there's less room unused than doubling it
+            long capacity = Math.max((long) bytes.length * 3 / 2, (long) size + length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (size + length > capacity) {
+                    throw new IllegalStateException("Index is full");
+                }
+            }
+            bytes = Arrays.copyOf(bytes, (int) capacity);
+        }
+
+        /**
+         * @return length of the value in the high 32 bits and offset of its bytes in the low 32 bits
+         */
+        private long locate(int offset) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[offset++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return ((long) length << 32) | offset;
+        }
+
+        boolean equals(int offset, byte[] value) {
+            long location = locate(offset);
+            int length = (int) (location >>> 32);
+            if (length != value.length) {
+                return false;
+            }
+            int start = (int) location;
+            for (int i = 0; i < length; i++) {
+                if (bytes[start + i] != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] getBytes(int offset) {
+            long location = locate(offset);
+            int start = (int) location;
+            return Arrays.copyOfRange(bytes, start, start + (int) (location >>> 32));
+        }
+
+        String getString(int offset) {
+            long location = locate(offset);
+            return new String(bytes, (int) location, (int) (location >>> 32), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Interned strings, referenced by their index. Only for values of a small set, like the mime types
+     */
+    private static final class StringPool {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        int intern(String value) {
+            if (value == null) {
+                return NONE;
+            }
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            return index;
+        }
+
+        String get(int index) {
+            return index == NONE ? null : values.get(index);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A folder pending to crawl, as persisted in the cache. Folders are listed in groups with the same query, so a group
+ * that was being listed when the process stopped can be resumed from the page it was at.
+ *
+ * @author andresoviedo
+ */
+public final class CrawlFrontierEntry {
+
+    private final String folderId;
+
+    private final String groupId;
+
+    private final String pageToken;
+
+    private final int retries;
+
+    public CrawlFrontierEntry(String folderId, String groupId, String pageToken, int retries) {
+        this.folderId = folderId;
+        this.groupId = groupId;
+        this.pageToken = pageToken;
+        this.retries = retries;
+    }
+
+    public String getFolderId() {
+        return folderId;
+    }
+
+    /**
+     * @return id of the group of folders being listed together or <code>null</code> if the folder wasn't listed yet
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * @return token of the next page of the group listing or <code>null</code> if the listing has to start over
+     */
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    /**
+     * @return number of failed attempts to crawl the folder
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Take the first groups of the entries, without splitting any of them, so a group is never resumed with part of
+     * its folders. The first group is always taken, even if it has more folders than the max.
+     *
+     * @param entries entries sorted by group
+     * @param max     max number of entries
+     * @return the entries of the first groups
+     */
+    static List<CrawlFrontierEntry> wholeGroups(List<CrawlFrontierEntry> entries, int max) {
+        if (entries.size() <= max) {
+            return entries;
+        }
+        int end = max;
+        while (end > 0 && Objects.equals(entries.get(end).groupId, entries.get(end - 1).groupId)) {
+            end--;
+        }
+        if (end == 0) {
+            end = 1;
+            while (end < entries.size() && Objects.equals(entries.get(end).groupId, entries.get(0).groupId)) {
+                end++;
+            }
+        }
+        return entries.subList(0, end);
+    }
+
+    @Override
+    public String toString() {
+        return "CrawlFrontierEntry{" + "folderId='" + folderId + '\'' + ", groupId='" + groupId + '\''
+                + ", pageToken='" + pageToken + '\'' + ", retries=" + retries + '}';
+    }
+}
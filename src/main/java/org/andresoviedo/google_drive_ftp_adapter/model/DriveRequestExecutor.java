@@ -0,0 +1,206 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes all the google drive requests. It waits for the {@link QuotaGovernor} before every attempt (requests with
+ * higher {@link RequestPriority priority} getting the quota first, as of the {@link RequestScheduler}) and retries
+ * failed requests as of the {@link RetryPolicy}, as long as there is retry budget left and the request deadline has
+ * not expired.
+ *
+ * @author andresoviedo
+ */
+public final class DriveRequestExecutor {
+
+    private static final Log logger = LogFactory.getLog(DriveRequestExecutor.class);
+
+    /**
+     * Retry budget is measured in tenths of a retry: every successful request deposits 1 (so we allow 1 retry every
+     * 10 successful requests) and every retry withdraws 10
+     */
+    private static final long RETRY_COST = 10;
+
+    private final QuotaGovernor quotaGovernor;
+
+    private final RequestScheduler requestScheduler;
+
+    private final RetryPolicy retryPolicy;
+
+    private final long deadline;
+
+    private final long maxBudget;
+
+    private final AtomicLong budget;
+
+    /**
+     * @param quotaGovernor the quota governor
+     * @param retryPolicy   the retry policy
+     * @param deadline      max millis a request can take, retries included
+     * @param maxRetries    max number of retries we can do in a row when google is failing
+     */
+    public DriveRequestExecutor(QuotaGovernor quotaGovernor, RetryPolicy retryPolicy, long deadline, int maxRetries) {
+        this(quotaGovernor, RequestScheduler.fromConfiguration(quotaGovernor, new Properties()), retryPolicy, deadline,
+                maxRetries);
+    }
+
+    /**
+     * @param quotaGovernor    the quota governor
+     * @param requestScheduler the scheduler of the quota between priorities
+     * @param retryPolicy      the retry policy
+     * @param deadline         max millis a request can take, retries included
+     * @param maxRetries       max number of retries we can do in a row when google is failing
+     */
+    public DriveRequestExecutor(QuotaGovernor quotaGovernor, RequestScheduler requestScheduler, RetryPolicy retryPolicy,
+                                long deadline, int maxRetries) {
+        this.quotaGovernor = quotaGovernor;
+        this.requestScheduler = requestScheduler;
+        this.retryPolicy = retryPolicy;
+        this.deadline = deadline;
+        this.maxBudget = maxRetries * RETRY_COST;
+        this.budget = new AtomicLong(maxBudget);
+    }
+
+    public static DriveRequestExecutor fromConfiguration(Properties configuration) {
+        QuotaGovernor quotaGovernor = QuotaGovernor.fromConfiguration(configuration);
+        return new DriveRequestExecutor(quotaGovernor, RequestScheduler.fromConfiguration(quotaGovernor, configuration),
+                BackoffRetryPolicy.fromConfiguration(configuration),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(configuration.getProperty("google.retry.deadlineSeconds", "120"))),
+                Integer.parseInt(configuration.getProperty("google.retry.budget", "50")));
+    }
+
+    /**
+     * Execute the request, retrying it if it fails
+     *
+     * @param description description of the request for logging purposes
+     * @param request     the request
+     * @param <T>         type of the response
+     * @return the response
+     * @throws IOException the last error if the request can't be retried anymore
+     */
+    public <T> T execute(String description, DriveCall<T> request) throws IOException {
+        return execute(description, 1, request);
+    }
+
+    /**
+     * Execute the request, retrying it if it fails
+     *
+     * @param description description of the request for logging purposes
+     * @param permits     number of requests accounted in the quota (i.e. the size of a batch request)
+     * @param request     the request
+     * @param <T>         type of the response
+     * @return the response
+     * @throws IOException the last error if the request can't be retried anymore
+     */
+    public <T> T execute(String description, int permits, DriveCall<T> request) throws IOException {
+        final long expiration = System.currentTimeMillis() + deadline;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeOnce(permits, request);
+            } catch (IOException e) {
+                final RetryPolicy.ErrorClass errorClass = RetryPolicy.ErrorClass.of(e);
+                final long delay = retryPolicy.nextDelay(errorClass, attempt);
+                if (delay < 0) {
+                    throw e;
+                }
+                if (System.currentTimeMillis() + delay > expiration) {
+                    logger.warn("Request deadline expired for " + description);
+                    throw e;
+                }
+                if (!withdrawRetry()) {
+                    logger.warn("Retry budget exhausted. Not retrying " + description);
+                    throw e;
+                }
+                logger.warn("Error " + errorClass + " executing " + description + ". Retrying in " + delay + " millis...");
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Execute the request without retrying it (i.e. it's not repeatable)
+     *
+     * @param request the request
+     * @param <T>     type of the response
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    public <T> T executeOnce(DriveCall<T> request) throws IOException {
+        return executeOnce(1, request);
+    }
+
+    private <T> T executeOnce(int permits, DriveCall<T> request) throws IOException {
+        try {
+            requestScheduler.acquire(RequestPriority.current(), permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for quota");
+        }
+        try {
+            T response = request.call();
+            quotaGovernor.onSuccess();
+            depositRetry();
+            return response;
+        } catch (GoogleJsonResponseException e) {
+            if (QuotaGovernor.isRateLimitExceeded(e)) {
+                quotaGovernor.onRateLimitExceeded();
+            }
+            throw e;
+        }
+    }
+
+    private void depositRetry() {
+        while (true) {
+            long current = budget.get();
+            if (current >= maxBudget || budget.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdrawRetry() {
+        while (true) {
+            long current = budget.get();
+            if (current < RETRY_COST) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - RETRY_COST)) {
+                return true;
+            }
+        }
+    }
+
+    private static void sleep(long delay) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    public QuotaGovernor getQuotaGovernor() {
+        return quotaGovernor;
+    }
+
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * A google drive request
+     *
+     * @param <T> type of the response
+     */
+    @FunctionalInterface
+    public interface DriveCall<T> {
+        T call() throws IOException;
+    }
+}
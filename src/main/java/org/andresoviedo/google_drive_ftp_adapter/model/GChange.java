@@ -1,5 +1,10 @@
 package org.andresoviedo.google_drive_ftp_adapter.model;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public final class GChange {
 
     private final String fileId;
@@ -29,4 +34,27 @@ public final class GChange {
     public String getRevision() {
         return revision;
     }
+
+    /**
+     * @return <code>true</code> if the file was removed or trashed, so it has to be deleted
+     */
+    public boolean isDeletion() {
+        return removed || file.getTrashed();
+    }
+
+    /**
+     * Collapse the changes of the same file, so only the last one is kept
+     *
+     * @param changes the changes in the order they happened
+     * @return the last change of every file
+     */
+    static Collection<GChange> collapse(List<GChange> changes) {
+        Map<String, GChange> ret = new LinkedHashMap<>();
+        for (GChange change : changes) {
+            // remove it first so the order is the one of the last change
+            ret.remove(change.getFileId());
+            ret.put(change.getFileId(), change);
+        }
+        return ret.values();
+    }
 }
@@ -1,6 +1,7 @@
 package org.andresoviedo.google_drive_ftp_adapter.model;
 
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -132,7 +133,7 @@ public class GFile implements Serializable, Cloneable {
         this.mimeType = mimeType;
     }
 
-    String getRevision() {
+    public String getRevision() {
         return revision;
     }
 
@@ -140,6 +141,19 @@ public class GFile implements Serializable, Cloneable {
         this.revision = revision;
     }
 
+    @Override
+    public GFile clone() {
+        try {
+            GFile ret = (GFile) super.clone();
+            if (parents != null) {
+                ret.parents = new HashSet<>(parents);
+            }
+            return ret;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public String toString() {
         return "(" + getId() + ")";
     }
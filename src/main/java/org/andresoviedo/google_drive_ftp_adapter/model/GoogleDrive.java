@@ -1,25 +1,35 @@
 package org.andresoviedo.google_drive_ftp_adapter.model;
 
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.AbstractInputStreamContent;
-import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Changes;
 import com.google.api.services.drive.Drive.Files;
-import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
-import org.andresoviedo.util.program.ProgramUtils;
+import org.andresoviedo.util.concurrent.SingleFlight;
+import org.andresoviedo.util.io.RingBufferPipe;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -31,66 +41,167 @@ public final class GoogleDrive {
 
     private static final Log logger = LogFactory.getLog(GoogleDrive.class);
 
+    private static final String REQUEST_FILE_FIELDS = "id, name, size, mimeType, modifiedTime, md5Checksum, trashed, parents";
+
     /**
-     * The google drive fixes the limit to 1000request/100second/user. We put 5 so
-     * we don't reach the limits
+     * Max number of requests google supports inside a batch request
      */
-    private static final int MAX_REQUESTS_PER_SECOND = 5;
-    private static final String REQUEST_FILE_FIELDS = "id, name, size, mimeType, modifiedTime, md5Checksum, trashed, parents";
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Max number of files google returns in every page
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Max number of folders we list in the same query, so the query doesn't get too long
+     */
+    private static final int MAX_FOLDERS_PER_QUERY = 50;
 
-    // restrict to 100/request per second (the rate limit is 100/second/user)
-    private final ProgramUtils.RequestsPerSecondController bandwidthController = new ProgramUtils.RequestsPerSecondController(
-            MAX_REQUESTS_PER_SECOND, TimeUnit.SECONDS.toMillis(1));
+    private static final int MB = 1024 * 1024;
+
+    private static final int STATUS_PARTIAL_CONTENT = 206;
+
+    private static final int STATUS_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Max number of folders or files we keep statistics of coalesced requests for
+     */
+    private static final int MAX_COALESCING_KEYS = 1000;
+
+    /**
+     * Executes the requests controlling we don't exceed the google quota and retrying them if they fail
+     */
+    private final DriveRequestExecutor requestExecutor;
 
     private final Drive drive;
 
+    /**
+     * Size of the chunks uploaded with the resumable upload protocol
+     */
+    private final int uploadChunkSize;
+
+    /**
+     * Files bigger than this are downloaded in several ranges concurrently
+     */
+    private final long parallelDownloadThreshold;
+
+    private final int downloadRangeSize;
+
+    private final int downloadConcurrency;
+
+    private final ExecutorService downloadExecutor;
+
+    /**
+     * Connections used by downloads. Downloads read slowly by the ftp clients hold their connection, so they can't
+     * take all the connections of the pool and leave the metadata requests waiting
+     */
+    private final Semaphore downloadConnections;
+
+    private final long downloadConnectionTimeout;
+
+    private final AtomicLong metadataRequestsSaved = new AtomicLong();
+
+    private final AtomicLong metadataRequests = new AtomicLong();
+
+    /**
+     * Concurrent requests listing the same folder with the same priority share the same google request
+     */
+    private final SingleFlight<String, List<GFile>> listFlights = new SingleFlight<>(files -> {
+        List<GFile> ret = new ArrayList<>(files.size());
+        for (GFile file : files) {
+            ret.add(file.clone());
+        }
+        return ret;
+    }, RequestPriority::current, MAX_COALESCING_KEYS);
+
+    /**
+     * Concurrent requests getting the same file with the same priority share the same google request
+     */
+    private final SingleFlight<String, File> getFileFlights = new SingleFlight<>(File::clone, RequestPriority::current,
+            MAX_COALESCING_KEYS);
+
     private final String ROOT_FOLDER_ID;
 
-    public GoogleDrive(Drive drive) {
+    public GoogleDrive(Drive drive, Properties configuration) {
+        this(drive, DriveRequestExecutor.fromConfiguration(configuration), configuration);
+    }
+
+    public GoogleDrive(Drive drive, DriveRequestExecutor requestExecutor, Properties configuration) {
         this.drive = drive;
-        bandwidthController.start();
+        this.requestExecutor = requestExecutor;
+        this.uploadChunkSize = Integer.parseInt(configuration.getProperty("google.upload.chunkSizeMB", "8")) * MB;
+        this.parallelDownloadThreshold = Long.parseLong(configuration.getProperty("google.download.parallelThresholdMB", "64")) * MB;
+        this.downloadRangeSize = Integer.parseInt(configuration.getProperty("google.download.rangeSizeMB", "8")) * MB;
+        this.downloadConcurrency = Integer.parseInt(configuration.getProperty("google.download.concurrency", "4"));
+        this.downloadConnections = new Semaphore(Integer.parseInt(configuration.getProperty("google.download.maxConnections", "10")), true);
+        this.downloadConnectionTimeout = TimeUnit.SECONDS.toMillis(Integer.parseInt(configuration.getProperty("google.http.connectionRequestTimeoutSeconds", "30")));
+        this.downloadExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "download-range");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Drive quota governor max rate: " + requestExecutor.getQuotaGovernor().getMaxRate() + " requests/second");
 
         ROOT_FOLDER_ID = getFile("root").getId();
     }
 
     public String getStartRevision() {
-        return getStartRevision(3);
+        try {
+            logger.debug("Getting drive status...");
+            return requestExecutor.execute("getStartPageToken()", drive.changes().getStartPageToken()::execute)
+                    .getStartPageToken();
+        } catch (IOException e) {
+            throw new RuntimeException("Error getting latest changes", e);
+        }
     }
 
-    public List<GChange> getAllChanges(String startChangeId) {
-        return retrieveAllChangesImpl(startChangeId, 3);
+    /**
+     * Retrieve the changes page by page, so they are not all in memory when there are lots of them. Every page is
+     * sent to the consumer together with the page token to continue from, so the consumer can save it and if
+     * something fails we continue from the last page processed.
+     *
+     * @param startChangeId page token to start retrieving the changes from
+     * @param pageConsumer  receives every page of changes and the page token of the next one. After the last page the
+     *                      token is the one to start from next time
+     * @return the page token to start from next time
+     */
+    public String getChanges(String startChangeId, BiConsumer<List<GChange>, String> pageConsumer) {
+        try {
+            logger.debug("Getting latest changes... " + startChangeId);
+
+            Changes.List request = drive.changes().list(startChangeId)
+                    .setFields("nextPageToken, newStartPageToken, changes(removed, fileId, file(" + REQUEST_FILE_FIELDS + "))");
+            request.setRestrictToMyDrive(true);
+            request.setIncludeRemoved(true);
+            request.setPageSize(MAX_PAGE_SIZE);
+            while (true) {
+                ChangeList changes = requestExecutor.execute("changes(" + request.getPageToken() + ")", request::execute);
+                final String nextPageToken = changes.getNextPageToken();
+                final boolean lastPage = nextPageToken == null || nextPageToken.isEmpty();
+                final String pageToken = lastPage ? changes.getNewStartPageToken() : nextPageToken;
+                pageConsumer.accept(toGChanges(pageToken, changes.getChanges()), pageToken);
+                if (lastPage) {
+                    return pageToken;
+                }
+                request.setPageToken(nextPageToken);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error getting latest changes", e);
+        }
     }
 
     public List<GFile> list(String folderId) {
-        return listImpl(folderId, 3);
+        // all list requests ask for the same fields, so the folder identifies the request
+        return listFlights.execute(folderId, () -> listImpl(folderId));
     }
 
-    private List<GFile> listImpl(String id, int retry) {
+    private List<GFile> listImpl(String folderId) {
         try {
-            logger.trace("list(" + id + ") retry " + retry);
+            logger.trace("list(" + folderId + ")");
 
             List<GFile> childIds = new ArrayList<>();
-
-            // Request to get list of files from google
-            Files.List request = drive.files().list()
-                    .setFields("nextPageToken, files(" + REQUEST_FILE_FIELDS + ")");
-            request.setQ("trashed = false and '" + id + "' in parents");
-
-            do {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new InterruptedException("Interrupted before fetching file metadata");
-                }
-
-                // control we are not exceeding number of requests/second
-                bandwidthController.newRequest();
-                FileList files = request.execute();
-
-                for (File file : files.getFiles()) {
-                    childIds.add(create(file));
-                }
-                request.setPageToken(files.getNextPageToken());
-
-            } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+            listQuery("list(" + folderId + ")", "trashed = false and '" + folderId + "' in parents", childIds::addAll);
             return childIds;
         } catch (GoogleJsonResponseException e) {
             if (e.getStatusCode() == 404) {
@@ -98,42 +209,181 @@ public final class GoogleDrive {
                 return null;
             }
             throw new RuntimeException("Error while getting list of files", e);
-        } catch (Exception e) {
-            if (retry > 0) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException("Error. Process interrupted while getting list of files", e1);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while getting list of files for '" + folderId + "'", e);
+        }
+    }
+
+    /**
+     * List the children of several folders at once. Every query asks for the children of up to
+     * {@link #MAX_FOLDERS_PER_QUERY} folders (<code>'a' in parents or 'b' in parents ...</code>) and then children
+     * are sent back to their folders as of their <code>parents</code> field.
+     *
+     * @param folderIds the folders to list
+     * @return the children of every folder
+     */
+    public Map<String, List<GFile>> list(Collection<String> folderIds) {
+        final Map<String, List<GFile>> ret = new HashMap<>(folderIds.size());
+        for (String folderId : folderIds) {
+            ret.put(folderId, new ArrayList<>());
+        }
+        final List<String> ids = new ArrayList<>(ret.keySet());
+        for (int i = 0; i < ids.size(); i += MAX_FOLDERS_PER_QUERY) {
+            final List<String> queryIds = ids.subList(i, Math.min(ids.size(), i + MAX_FOLDERS_PER_QUERY));
+            logger.trace("list(" + queryIds + ")");
+
+            try {
+                listQuery("list(" + queryIds.size() + " folders)", childrenQuery(queryIds), files -> {
+                    for (GFile file : files) {
+                        for (String parent : file.getParents()) {
+                            List<GFile> children = ret.get(parent);
+                            if (children != null) {
+                                children.add(file);
+                            }
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("Error while getting list of files for " + queryIds, e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * List the children of a group of folders with the same query, page after page, starting at the given page. The
+     * consumer gets every page with the token of the next one (<code>null</code> after the last page), so the listing
+     * can be resumed later with the same folders in the same order. If the listing can't be resumed (i.e. the token
+     * expired) it starts over, so the consumer may get some children twice.
+     *
+     * @param folderIds    the folders, up to {@link #MAX_FOLDERS_PER_QUERY}
+     * @param pageToken    token of the page to start at or <code>null</code> to start at the first one
+     * @param pageConsumer the consumer of every page of children and the token of the next page
+     */
+    public void list(List<String> folderIds, String pageToken, BiConsumer<List<GFile>, String> pageConsumer) {
+        if (folderIds.size() > MAX_FOLDERS_PER_QUERY) {
+            throw new IllegalArgumentException("Can't list more than " + MAX_FOLDERS_PER_QUERY + " folders at once");
+        }
+        logger.trace("list(" + folderIds + "," + pageToken + ")");
+        final String description = "list(" + folderIds.size() + " folders)";
+        try {
+            try {
+                listQuery(description, childrenQuery(folderIds), pageToken, pageConsumer);
+            } catch (GoogleJsonResponseException e) {
+                if (pageToken == null || (e.getStatusCode() != 400 && e.getStatusCode() != 404)) {
+                    throw e;
                 }
-                logger.warn("retrying getting list of files for '" + id + "'...");
-                return listImpl(id, --retry);
+                logger.warn("Can't resume " + description + " at page '" + pageToken + "'. Listing from the first page...");
+                listQuery(description, childrenQuery(folderIds), null, pageConsumer);
             }
-            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while getting list of files for " + folderIds, e);
         }
     }
 
     /**
-     * Get remote file with 3 retries
+     * @param folderIds the folders
+     * @return query of the children of all the folders (<code>'a' in parents or 'b' in parents ...</code>)
+     */
+    private static String childrenQuery(List<String> folderIds) {
+        StringBuilder query = new StringBuilder("trashed = false and (");
+        for (int j = 0; j < folderIds.size(); j++) {
+            query.append(j > 0 ? " or '" : "'").append(folderIds.get(j)).append("' in parents");
+        }
+        return query.append(")").toString();
+    }
+
+    /**
+     * List all the files in the drive, without filtering by parent. Pages are sent to the consumer as soon as they
+     * arrive, so we don't hold the whole drive in memory.
+     *
+     * @param pageConsumer the consumer of every page of files
+     */
+    public void listAll(Consumer<List<GFile>> pageConsumer) {
+        try {
+            logger.info("Listing all files...");
+            listQuery("listAll()", "trashed = false", pageConsumer);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while getting list of all files", e);
+        }
+    }
+
+    /**
+     * Execute the query and send the files found to the consumer, page after page. Files without parents (i.e.
+     * shared with me) are skipped because they are not in the drive tree.
+     *
+     * @param description  description of the query for logging purposes
+     * @param query        the query
+     * @param pageConsumer the consumer of every page of files
+     * @throws IOException if there is an error getting any page
+     */
+    private void listQuery(String description, String query, Consumer<List<GFile>> pageConsumer) throws IOException {
+        listQuery(description, query, null, (page, nextPageToken) -> pageConsumer.accept(page));
+    }
+
+    /**
+     * Execute the query starting at the given page and send the files found to the consumer, page after page, with the
+     * token of the next page (<code>null</code> after the last one)
+     *
+     * @param description  description of the query for logging purposes
+     * @param query        the query
+     * @param pageToken    token of the page to start at or <code>null</code> to start at the first one
+     * @param pageConsumer the consumer of every page of files and the token of the next page
+     * @throws IOException if there is an error getting any page
+     */
+    private void listQuery(String description, String query, String pageToken,
+                           BiConsumer<List<GFile>, String> pageConsumer) throws IOException {
+        // Request to get list of files from google
+        Files.List request = drive.files().list()
+                .setFields("nextPageToken, files(" + REQUEST_FILE_FIELDS + ")")
+                .setPageSize(MAX_PAGE_SIZE)
+                .setPageToken(pageToken);
+        request.setQ(query);
+
+        do {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted before fetching file metadata");
+            }
+
+            FileList files = requestExecutor.execute(description, request::execute);
+
+            List<GFile> page = new ArrayList<>(files.getFiles().size());
+            for (File file : files.getFiles()) {
+                if (file.getParents() != null) {
+                    page.add(create(file));
+                }
+            }
+            String nextPageToken = files.getNextPageToken();
+            pageConsumer.accept(page, nextPageToken != null && nextPageToken.length() > 0 ? nextPageToken : null);
+            request.setPageToken(nextPageToken);
+
+        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+    }
+
+    /**
+     * Get remote file
      *
      * @param fileId id of google drive file
      * @return file or <code>null</code> if it doesn't exists
      */
     public GFile getFile(String fileId) {
-        File fileImpl = getFileImpl(fileId, 3);
+        File fileImpl = getFileImpl(fileId);
         if (fileImpl == null) return null;
         return create(fileImpl);
     }
 
-    private File getFileImpl(String fileId, int retry) {
+    private File getFileImpl(String fileId) {
+        // all get requests ask for the same fields, so the file identifies the request
+        return getFileFlights.execute(fileId, () -> getFileRequest(fileId));
+    }
+
+    private File getFileRequest(String fileId) {
         try {
             logger.trace("getFile(" + fileId + ")");
 
-            // control we are not exceeding number of requests/second
-            bandwidthController.newRequest();
-
             // get file from google
-            File file = drive.files().get(fileId)
-                    .setFields(REQUEST_FILE_FIELDS).execute();
+            File file = requestExecutor.execute("getFile(" + fileId + ")",
+                    drive.files().get(fileId).setFields(REQUEST_FILE_FIELDS)::execute);
 
             logger.trace("getFile(" + fileId + ") = " + file.getName());
 
@@ -142,157 +392,402 @@ public final class GoogleDrive {
             if (e.getStatusCode() == 404) {
                 return null;
             }
-            throw new RuntimeException("Error while getting list of files", e);
-        } catch (Exception e) {
-            if (retry > 0) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException(e1);
-                }
-                logger.warn("Getting file data failed. Retrying... '" + fileId);
-                return getFileImpl(fileId, --retry);
+            throw new RuntimeException("Error while getting file " + fileId, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while getting file " + fileId, e);
+        }
+    }
+
+    /**
+     * Get remote files using batch requests, so we do 1 http request for every {@link #MAX_BATCH_SIZE} files.
+     * Files that fail inside the batch because of a transient error are requested again individually.
+     *
+     * @param fileIds ids of google drive files
+     * @return map with the files found. Files that don't exist are mapped to <code>null</code>
+     */
+    public Map<String, GFile> getFiles(Collection<String> fileIds) {
+        final Map<String, GFile> ret = new HashMap<>(fileIds.size());
+        final List<String> ids = new ArrayList<>(fileIds);
+        final Set<String> failed = Collections.synchronizedSet(new HashSet<>());
+        for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+            final List<String> batchIds = ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE));
+            logger.debug("Getting " + batchIds.size() + " files in batch...");
+            try {
+                requestExecutor.execute("getFiles(" + batchIds.size() + ")", batchIds.size(), () -> {
+                    // batch is emptied once executed, so we need a new one for every attempt
+                    BatchRequest batch = drive.batch();
+                    for (final String fileId : batchIds) {
+                        drive.files().get(fileId).setFields(REQUEST_FILE_FIELDS).queue(batch, new JsonBatchCallback<File>() {
+                            @Override
+                            public void onSuccess(File file, HttpHeaders responseHeaders) {
+                                failed.remove(fileId);
+                                synchronized (ret) {
+                                    ret.put(fileId, create(file));
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                                if (e.getCode() == 404) {
+                                    failed.remove(fileId);
+                                    synchronized (ret) {
+                                        ret.put(fileId, null);
+                                    }
+                                } else {
+                                    logger.debug("Error getting file '" + fileId + "' in batch: " + e.getCode() + " " + e.getMessage());
+                                    failed.add(fileId);
+                                }
+                            }
+                        });
+                    }
+                    batch.execute();
+                    return null;
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("Error getting files in batch", e);
             }
-            throw new RuntimeException(e);
         }
+        for (String fileId : failed) {
+            ret.put(fileId, getFile(fileId));
+        }
+        return ret;
     }
 
     /**
      * Download a file's content.
+     * <p>
+     * We trust the mime type of the cached file, so we don't request the metadata before downloading. The metadata is
+     * only requested if the cached file is stale, if google refuses to download it (i.e. it was deleted or converted to
+     * a google document) or if the downloaded size is not the cached one. The size of the cached file is just a hint
+     * for the parallel download, which reads the real size from every range.
      *
-     * @param gFile file to download from google
+     * @param gFile     file to download from google
+     * @param offset    position of the first byte to download (i.e. when the ftp client resumes the download)
+     * @param refreshed called with the fresh metadata when the cached file was stale
      * @return File containing the file's content if successful, {@code null} otherwise.
      */
-    // TODO: retry?
-    public InputStream downloadFile(GFile gFile) {
-        logger.info("Downloading file '" + gFile.getId() + "'...");
+    public InputStream downloadFile(GFile gFile, long offset, Consumer<GFile> refreshed) {
+        logger.info("Downloading file '" + gFile.getId() + "' from offset " + offset + "...");
 
         try {
-            // refresh file because download links may change
-            File file = getFileImpl(gFile.getId(), 3);
-            if (file == null) {
-                logger.error("File doesn't exists '" + gFile.getId());
-                return null;
+            if (gFile.getMimeType() == null) {
+                logger.info("Cached file is stale '" + gFile.getId() + "'");
+                GFile file = refreshFile(gFile.getId(), refreshed);
+                return file != null ? download(file, offset, refreshed) : null;
             }
-            if (GFile.MIME_TYPE.GOOGLE_FOLDER.getValue().equals(file.getMimeType())) {
-                logger.error("File is a directory '" + gFile.getId());
-                return null;
-            }
-            if (GFile.MIME_TYPE.GOOGLE_SHEET.getValue().equals(file.getMimeType())) {
-                logger.info("Download file as sheet... '" + gFile.getId());
-                return drive.files().export(file.getId(),
-                        GFile.MIME_TYPE.MS_EXCEL.getValue()).executeMediaAsInputStream();
-            }
-            if (GFile.MIME_TYPE.GOOGLE_DOC.getValue().equals(file.getMimeType())) {
-                logger.info("Download file as doc... '" + gFile.getId());
-                return drive.files().export(file.getId(),
-                        GFile.MIME_TYPE.MS_WORD.getValue()).executeMediaAsInputStream();
+            try {
+                InputStream ret = download(gFile, offset, refreshed);
+                metadataRequestsSaved.incrementAndGet();
+                return ret;
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != 404 && (e.getStatusCode() != 403
+                        || e instanceof GoogleJsonResponseException && QuotaGovernor.isRateLimitExceeded((GoogleJsonResponseException) e))) {
+                    throw e;
+                }
+                logger.info("Download failed with status " + e.getStatusCode() + ". Refreshing file '" + gFile.getId() + "'...");
+                GFile file = refreshFile(gFile.getId(), refreshed);
+                return file != null ? download(file, offset, refreshed) : null;
             }
-
-            logger.info("Download file... '" + gFile.getId());
-            return drive.files().get(gFile.getId()).executeMediaAsInputStream();
         } catch (Exception ex) {
             throw new RuntimeException("Error downloading file " + gFile.getId(), ex);
+        } finally {
+            logger.debug("Download metadata requests saved: " + metadataRequestsSaved.get() + ", done: " + metadataRequests.get());
         }
     }
 
+    private GFile refreshFile(String fileId, Consumer<GFile> refreshed) throws IOException {
+        metadataRequests.incrementAndGet();
+        File file = getFileImpl(fileId);
+        if (file == null) {
+            logger.error("File doesn't exists '" + fileId);
+            return null;
+        }
+        GFile ret = create(file);
+        refreshed.accept(ret.clone());
+        return ret;
+    }
+
+    private InputStream download(GFile file, long offset, Consumer<GFile> refreshed) throws IOException {
+        if (GFile.MIME_TYPE.GOOGLE_FOLDER.getValue().equals(file.getMimeType())) {
+            logger.error("File is a directory '" + file.getId());
+            return null;
+        }
+        // exported files don't support ranges, so we skip the bytes already downloaded
+        if (GFile.MIME_TYPE.GOOGLE_SHEET.getValue().equals(file.getMimeType())) {
+            logger.info("Download file as sheet... '" + file.getId());
+            return skip(requestExecutor.execute("export(" + file.getId() + ")", drive.files().export(file.getId(),
+                    GFile.MIME_TYPE.MS_EXCEL.getValue())::executeMediaAsInputStream), offset);
+        }
+        if (GFile.MIME_TYPE.GOOGLE_DOC.getValue().equals(file.getMimeType())) {
+            logger.info("Download file as doc... '" + file.getId());
+            return skip(requestExecutor.execute("export(" + file.getId() + ")", drive.files().export(file.getId(),
+                    GFile.MIME_TYPE.MS_WORD.getValue())::executeMediaAsInputStream), offset);
+        }
+
+        final long size = file.getSize();
+        if (downloadConcurrency > 1 && size - offset >= parallelDownloadThreshold) {
+            logger.info("Download file in parallel... '" + file.getId());
+            ParallelDownloadInputStream ret = new ParallelDownloadInputStream((start, end) -> fetchRange(file.getId(), start, end),
+                    downloadExecutor, offset, size, downloadRangeSize, downloadConcurrency, realSize -> {
+                logger.info("Cached size of file '" + file.getId() + "' is stale. Refreshing file...");
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        refreshFile(file.getId(), refreshed);
+                    } catch (IOException e) {
+                        logger.error("Error refreshing file '" + file.getId() + "'", e);
+                    }
+                }, downloadExecutor);
+            });
+            // so a file that can't be downloaded anymore is refreshed like in the other downloads
+            ret.awaitFirstRange();
+            return ret;
+        }
+
+        logger.info("Download file... '" + file.getId());
+        return downloadRange(file.getId(), offset, -1);
+    }
+
     /**
-     * Create a remote directory with 3 retries
-     *
-     * @param parentId the parent file id
-     * @param filename the name of the directory
-     * @return the newly create directory
+     * @return the governor of the requests rate
      */
-    public GFile mkdir(String parentId, String filename) {
-        GFile gFile = new GFile(Collections.singleton(parentId), filename);
-        return create(mkdir_impl(gFile, 3));
+    public QuotaGovernor getQuotaGovernor() {
+        return requestExecutor.getQuotaGovernor();
     }
 
-    private File mkdir_impl(GFile gFile, int retry) {
-        try {
-            // New file
-            logger.info("Creating new directory...");
-            File file = new File();
-            file.setMimeType("application/vnd.google-apps.folder");
-            file.setName(gFile.getName());
-            file.setModifiedTime(new DateTime(System.currentTimeMillis()));
-            file.setParents(new ArrayList<>(gFile.getParents()));
-            file = drive.files().create(file).setFields(REQUEST_FILE_FIELDS).execute();
-            logger.info("Directory created successfully: " + file.getId());
-            return file;
-        } catch (IOException e) {
-            if (retry > 0) {
+    /**
+     * @return the scheduler deciding which request gets the quota first
+     */
+    public RequestScheduler getRequestScheduler() {
+        return requestExecutor.getRequestScheduler();
+    }
+
+    /**
+     * @return number of list and get requests that shared the result of the same request in flight
+     */
+    public long getCoalescedRequests() {
+        return listFlights.getShared() + getFileFlights.getShared();
+    }
+
+    /**
+     * @return number of list requests that shared the result of the same request in flight, per folder
+     */
+    public Map<String, Long> getCoalescedListRequests() {
+        return listFlights.getSharedPerKey();
+    }
+
+    /**
+     * @return number of get requests that shared the result of the same request in flight, per file
+     */
+    public Map<String, Long> getCoalescedGetFileRequests() {
+        return getFileFlights.getSharedPerKey();
+    }
+
+    /**
+     * @return number of downloads that didn't need to request the file metadata
+     */
+    public long getMetadataRequestsSaved() {
+        return metadataRequestsSaved.get();
+    }
+
+    /**
+     * @return number of downloads that had to request the file metadata because the cached one was stale
+     */
+    public long getMetadataRequests() {
+        return metadataRequests.get();
+    }
+
+    /**
+     * Download a range of the file content using the http <code>Range</code> header
+     *
+     * @param fileId id of the file
+     * @param start  first byte to download
+     * @param end    last byte to download (inclusive) or -1 to download until the end of the file
+     * @return the content
+     * @throws IOException if the download fails
+     */
+    private InputStream downloadRange(String fileId, long start, long end) throws IOException {
+        return requestExecutor.execute("download(" + fileId + ", " + start + "-" + (end >= 0 ? end : "") + ")", () -> {
+            acquireDownloadConnection();
+            boolean streaming = false;
+            try {
+                Files.Get request = drive.files().get(fileId);
+                if (start > 0 || end >= 0) {
+                    request.getRequestHeaders().setRange("bytes=" + start + "-" + (end >= 0 ? end : ""));
+                }
+                HttpResponse response;
                 try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException(e1);
+                    response = request.executeMedia();
+                } catch (HttpResponseException e) {
+                    if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                        // offset is at the end of the file
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+                    throw e;
+                }
+                InputStream content = response.getContent();
+                if (start > 0 && response.getStatusCode() != STATUS_PARTIAL_CONTENT) {
+                    logger.warn("Range not supported for file '" + fileId + "'. Skipping " + start + " bytes...");
+                    content = skip(content, start);
+                }
+                // the connection is held until the ftp client closes the stream
+                streaming = true;
+                return new FilterInputStream(content) {
+
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (!closed) {
+                                closed = true;
+                                downloadConnections.release();
+                            }
+                        }
+                    }
+                };
+            } finally {
+                if (!streaming) {
+                    downloadConnections.release();
                 }
-                logger.warn("Uploading file failed. Retrying... '" + gFile.getId());
-                return mkdir_impl(gFile, --retry);
             }
-            throw new RuntimeException("Exception uploading file " + gFile.getId(), e);
+        });
+    }
+
+    /**
+     * Download a range of the file content into memory. The whole download is retried if the connection fails
+     * while reading the content. The range is shorter than requested (or empty) if the file is smaller than expected.
+     *
+     * @param fileId id of the file
+     * @param start  first byte to download
+     * @param end    last byte to download (inclusive)
+     * @return the content and the real size of the file
+     * @throws IOException if the download fails
+     */
+    private ParallelDownloadInputStream.Range fetchRange(String fileId, long start, long end) throws IOException {
+        return requestExecutor.execute("download(" + fileId + ", " + start + "-" + end + ")", () -> {
+            acquireDownloadConnection();
+            try {
+                return fetchRangeRequest(fileId, start, end);
+            } finally {
+                downloadConnections.release();
+            }
+        });
+    }
+
+    private ParallelDownloadInputStream.Range fetchRangeRequest(String fileId, long start, long end) throws IOException {
+        Files.Get request = drive.files().get(fileId);
+        request.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+        HttpResponse response;
+        try {
+            response = request.executeMedia();
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                // the file is smaller than expected
+                return new ParallelDownloadInputStream.Range(new byte[0], parseFileSize(e.getHeaders().getContentRange()));
+            }
+            throw e;
+        }
+        if (response.getStatusCode() != STATUS_PARTIAL_CONTENT) {
+            response.disconnect();
+            throw new IllegalStateException("Range not supported for file '" + fileId + "'");
+        }
+        final long fileSize = parseFileSize(response.getHeaders().getContentRange());
+        final long expected = fileSize >= 0 ? Math.min(end, fileSize - 1) - start + 1 : end - start + 1;
+        byte[] range = new byte[(int) (end - start + 1)];
+        int length = 0;
+        try (InputStream content = response.getContent()) {
+            int read;
+            while (length < range.length && (read = content.read(range, length, range.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (length < expected) {
+            throw new EOFException("Range incomplete. Expected " + expected + " bytes but got " + length);
         }
+        return new ParallelDownloadInputStream.Range(length < range.length ? Arrays.copyOf(range, length) : range, fileSize);
     }
 
-    private String getStartRevision(int retry) {
+    /**
+     * Wait for one of the connections downloads can use
+     *
+     * @throws IOException if there's no connection available in time, so the download is retried later
+     */
+    private void acquireDownloadConnection() throws IOException {
         try {
+            if (!downloadConnections.tryAcquire(downloadConnectionTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout waiting for a download connection. Too many downloads in progress");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a download connection");
+        }
+    }
 
-            // control we are not exceeding number of requests/second
-            bandwidthController.newRequest();
-            logger.debug("Getting drive status...");
-            return drive.changes().getStartPageToken().execute().getStartPageToken();
+    /**
+     * @param contentRange the <code>Content-Range</code> header, i.e. <code>bytes 0-99/1234</code> or
+     *                     <code>bytes &#42;/1234</code>
+     * @return the size of the file or -1 if unknown
+     */
+    private static long parseFileSize(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash == -1 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // size is unknown (*)
+            return -1;
+        }
+    }
 
-        } catch (IOException e) {
-            if (retry > 0) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException(e1);
+    /**
+     * Skip the first bytes of the stream
+     *
+     * @param inputStream the stream
+     * @param bytes       number of bytes to skip
+     * @return the same stream
+     * @throws IOException if there is an error reading the stream
+     */
+    private static InputStream skip(InputStream inputStream, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    break;
                 }
-                logger.warn("Error getting latest changes. Retrying...");
-                return getStartRevision(--retry);
+                skipped = 1;
             }
-            throw new RuntimeException("Error getting latest changes", e);
+            remaining -= skipped;
         }
+        return inputStream;
     }
 
     /**
-     * Retrieve a list of Change resources.
+     * Create a remote directory
      *
-     * @param startChangeId ID of the change to start retrieving subsequent changes from or {@code null}.
-     * @param retry         number of retries
-     * @return List of Change resources.
+     * @param parentId the parent file id
+     * @param filename the name of the directory
+     * @return the newly create directory
      */
-    private List<GChange> retrieveAllChangesImpl(String startChangeId, int retry) {
+    public GFile mkdir(String parentId, String filename) {
         try {
-            logger.debug("Getting latest changes... " + startChangeId);
-            List<Change> result = new ArrayList<>();
-
-            Changes.List request = drive.changes().list(startChangeId)
-                    .setFields("nextPageToken, newStartPageToken, changes(removed, fileId, file(" + REQUEST_FILE_FIELDS + "))");
-            request.setRestrictToMyDrive(true);
-            request.setIncludeRemoved(true);
-            ChangeList changes;
-            do {
-                // control we are not exceeding number of requests/second
-                bandwidthController.newRequest();
-                changes = request.execute();
-                result.addAll(changes.getChanges());
-                request.setPageToken(changes.getNextPageToken());
-            } while (request.getPageToken() != null && request.getPageToken().length() > 0);
-            final String lastPageToken = changes.getNewStartPageToken();
-            return toGChanges(lastPageToken, result);
-        } catch (Exception e) {
-            if (retry > 0) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException(e1);
-                }
-                logger.warn("Error getting latest changes. Retrying...");
-                return retrieveAllChangesImpl(startChangeId, --retry);
-            }
-            throw new RuntimeException("Error getting latest changes", e);
+            // New file
+            logger.info("Creating new directory...");
+            File file = new File();
+            file.setMimeType("application/vnd.google-apps.folder");
+            file.setName(filename);
+            file.setModifiedTime(new DateTime(System.currentTimeMillis()));
+            file.setParents(Collections.singletonList(parentId));
+            file = requestExecutor.execute("mkdir(" + filename + ")",
+                    drive.files().create(file).setFields(REQUEST_FILE_FIELDS)::execute);
+            logger.info("Directory created successfully: " + file.getId());
+            return create(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Exception creating directory " + filename, e);
         }
     }
 
@@ -321,36 +816,22 @@ public final class GoogleDrive {
         if (newLastModified > 0) {
             patch.setModifiedTime(new DateTime(newLastModified));
         }
-        return create(patchFile(fileId, patch, 3));
+        return create(patchFile(fileId, patch));
     }
 
-    private File patchFile(String fileId, File patch, int retry) {
+    private File patchFile(String fileId, File patch) {
         try {
-            Files.Update patchRequest = drive.files().update(fileId, patch)
-                    .setFields(REQUEST_FILE_FIELDS);
-
-            // control we are not exceeding number of requests/second
-            bandwidthController.newRequest();
-            return patchRequest.execute();
-        } catch (Exception e) {
-            if (retry > 0) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException(e1);
-                }
-                logger.warn("Error updating file. Retrying...");
-                patchFile(fileId, patch, --retry);
-            }
+            return requestExecutor.execute("patchFile(" + fileId + ")",
+                    drive.files().update(fileId, patch).setFields(REQUEST_FILE_FIELDS)::execute);
+        } catch (IOException e) {
             throw new RuntimeException("Error updating file " + fileId, e);
         }
-
     }
 
     public File trashFile(String fileId) {
         File patch = new File();
         patch.setTrashed(true);
-        return patchFile(fileId, patch, 3);
+        return patchFile(fileId, patch);
     }
 
     private GFile create(File file) {
@@ -376,56 +857,56 @@ public final class GoogleDrive {
     }
 
     public OutputStreamRequest getOutputStream(final GFile gFile) {
-        try {
-            logger.info("Uploading file stream...");
+        logger.info("Uploading file stream...");
 
-            final PipedOutputStream pipedOutputStream = new PipedOutputStream();
-            final PipedInputStream pipedInputStream = new PipedInputStream(pipedOutputStream);
+        final RingBufferPipe pipe = new RingBufferPipe();
+        final InputStream pipedInputStream = pipe.getInputStream();
 
-            // TODO: implement file update
-            File file = new File();
-            file.setModifiedTime(new DateTime(gFile.getLastModified() != 0 ? gFile.getLastModified() : System.currentTimeMillis()));
-            file.setName(gFile.getName());
-
-            AbstractInputStreamContent mediaContent = new InputStreamContent(gFile.getMimeType(), pipedInputStream);
-
-            final DriveRequest uploadRequest;
-            if (!gFile.isExists()) {
-                file.setParents(new ArrayList<>(gFile.getParents()));
-                uploadRequest = drive.files().create(file, mediaContent);
-            } else {
-                if (gFile.getParents() == null || gFile.getParents().isEmpty()) {
-                    throw new IllegalArgumentException("Error. file parents can't be null nor empty");
-                }
-                uploadRequest = drive.files().update(gFile.getId(), file, mediaContent);
-                StringBuilder parents = new StringBuilder();
-                gFile.getParents().forEach((p) -> parents.append(p).append(","));
-                ((Files.Update) uploadRequest).setAddParents(parents.toString());
+        // TODO: implement file update
+        File file = new File();
+        file.setModifiedTime(new DateTime(gFile.getLastModified() != 0 ? gFile.getLastModified() : System.currentTimeMillis()));
+        file.setName(gFile.getName());
+
+        final String fileId;
+        final String addParents;
+        if (!gFile.isExists()) {
+            file.setParents(new ArrayList<>(gFile.getParents()));
+            fileId = null;
+            addParents = null;
+        } else {
+            if (gFile.getParents() == null || gFile.getParents().isEmpty()) {
+                throw new IllegalArgumentException("Error. file parents can't be null nor empty");
             }
-            uploadRequest.setFields(REQUEST_FILE_FIELDS);
+            fileId = gFile.getId();
+            StringBuilder parents = new StringBuilder();
+            gFile.getParents().forEach((p) -> parents.append(p).append(","));
+            addParents = parents.toString();
+        }
 
-            Supplier<GFile> uploadTask = () -> {
+        Supplier<GFile> uploadTask = () -> {
+            try {
+                logger.info("Uploading file stream now...");
+                final GFile uploadedFile = create(new ResumableUpload(drive, requestExecutor, uploadChunkSize)
+                        .upload(fileId, file, addParents, gFile.getMimeType(), REQUEST_FILE_FIELDS, pipedInputStream));
+
+                logger.info("File uploaded successfully");
+                return uploadedFile;
+            } catch (IOException e) {
+                logger.error("Error uploading file", e);
+                throw new RuntimeException("Error uploading file", e);
+            } finally {
                 try {
-                    bandwidthController.newRequest();
-
-                    logger.info("Uploading file stream now...");
-                    final GFile uploadedFile = create((File) uploadRequest.execute());
-
-                    logger.info("File uploaded successfully");
-                    return uploadedFile;
+                    // so the writer doesn't block forever if the upload failed
+                    pipedInputStream.close();
                 } catch (IOException e) {
-                    logger.error("Error uploading file", e);
-                    throw new RuntimeException("Error uploading file", e);
+                    logger.warn("Error closing upload stream", e);
                 }
-            };
+            }
+        };
 
-            // upload...
-            //final CompletableFuture<File> uploadSubmit = executor.submit(uploadTask);
-            return new OutputStreamRequest(pipedOutputStream, CompletableFuture.supplyAsync(uploadTask));
-        } catch (IOException e) {
-            logger.error("Error creating output stream", e);
-            throw new RuntimeException("Error creating output stream", e);
-        }
+        // upload...
+        //final CompletableFuture<File> uploadSubmit = executor.submit(uploadTask);
+        return new OutputStreamRequest(pipe.getOutputStream(), CompletableFuture.supplyAsync(uploadTask));
     }
 
     public static class OutputStreamRequest {
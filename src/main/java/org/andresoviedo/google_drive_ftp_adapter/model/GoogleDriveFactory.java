@@ -5,8 +5,11 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -15,11 +18,25 @@ import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import java.io.InputStreamReader;
+import java.net.ProxySelector;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory to create instances of {@link GoogleDrive}.
@@ -53,6 +70,22 @@ public final class GoogleDriveFactory {
      */
     private final HttpTransport httpTransport;
 
+    /**
+     * Connection pool of the http transport or <code>null</code> if the transport is not pooled
+     */
+    private MonitoredConnManager connectionPool;
+
+    private final int maxConnectionsPerRoute;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    /**
+     * Max millis to wait for a connection of the pool
+     */
+    private final long connectionRequestTimeout;
+
     private Drive drive;
 
     public GoogleDriveFactory(Properties configuration) {
@@ -60,18 +93,96 @@ public final class GoogleDriveFactory {
         java.io.File DATA_STORE_DIR = new java.io.File("data/google/" + configuration.getProperty("account", "default"));
         
         authPort = Integer.parseInt(configuration.getProperty("auth.port", String.valueOf("-1")));
+        maxConnectionsPerRoute = Integer.parseInt(configuration.getProperty("google.http.maxConnectionsPerRoute", "20"));
+        connectTimeout = (int) TimeUnit.SECONDS.toMillis(Integer.parseInt(configuration.getProperty("google.http.connectTimeoutSeconds", "20")));
+        readTimeout = (int) TimeUnit.SECONDS.toMillis(Integer.parseInt(configuration.getProperty("google.http.readTimeoutSeconds", "60")));
+        connectionRequestTimeout = TimeUnit.SECONDS.toMillis(Integer.parseInt(configuration.getProperty("google.http.connectionRequestTimeoutSeconds", "30")));
 
         try {
             // initialize the data store factory
             dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
             // initialize the transport
-            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            if ("net".equals(configuration.getProperty("google.http.transport", "apache"))) {
+                httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            } else {
+                httpTransport = newPooledTransport(
+                        Integer.parseInt(configuration.getProperty("google.http.idleTimeoutSeconds", "60")));
+            }
 
         } catch (Exception e) {
             throw new RuntimeException("Error intializing google drive API", e);
         }
     }
 
+    /**
+     * Create a transport with a pool of keep-alive connections, so we don't do a TLS handshake for every request.
+     * Requests wait for a connection up to the connection request timeout, so they fail and are retried instead of
+     * blocking forever if the pool is exhausted (i.e. by downloads read slowly by the ftp clients).
+     *
+     * @param idleTimeout seconds a connection can be idle in the pool before closing it
+     * @return the transport
+     * @throws Exception if the transport can't be created
+     */
+    private HttpTransport newPooledTransport(int idleTimeout) throws Exception {
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+                .trustCertificates(GoogleUtils.getCertificateTrustStore());
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnectionsPerRoute * 2);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setTimeout(params, connectionRequestTimeout);
+        // pooled connections may have been closed by google
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        // same client as ApacheHttpTransport.Builder.build(), but with a pool that we can monitor
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", builder.getSSLSocketFactory(), 443));
+        connectionPool = new MonitoredConnManager(params, registry);
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionPool, params);
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        httpClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+        ApacheHttpTransport transport = new ApacheHttpTransport(httpClient);
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-pool-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleWithFixedDelay(() -> {
+            connectionPool.closeExpiredConnections();
+            connectionPool.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            // connections in the pool include the idle ones, so the pool is saturated when requests have to wait
+            int peakLeased = connectionPool.resetPeakLeased();
+            long waits = connectionPool.resetWaits();
+            long waitMillis = connectionPool.resetWaitMillis();
+            long timeouts = connectionPool.resetTimeouts();
+            if (waits > 0 || timeouts > 0) {
+                logger.warn("HTTP connection pool saturated. Connections in use: " + peakLeased + "/"
+                        + maxConnectionsPerRoute + ". Requests waiting for a connection: " + waits + " (" + waitMillis
+                        + " millis). Timed out: " + timeouts + ". Consider increasing google.http.maxConnectionsPerRoute");
+            } else {
+                logger.debug("HTTP connections in use: " + connectionPool.getLeased() + " (peak " + peakLeased
+                        + "). In pool: " + connectionPool.getConnectionsInPool() + "/" + maxConnectionsPerRoute);
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+        logger.info("Using pooled http transport. Max connections per route: " + maxConnectionsPerRoute
+                + ". Connection request timeout: " + connectionRequestTimeout + " millis");
+        return transport;
+    }
+
+    /**
+     * @return number of connections (in use or idle) in the http pool or -1 if the transport is not pooled
+     */
+    public int getConnectionsInPool() {
+        return connectionPool != null ? connectionPool.getConnectionsInPool() : -1;
+    }
+
+    /**
+     * @return number of connections in use in the http pool or -1 if the transport is not pooled
+     */
+    public int getConnectionsInUse() {
+        return connectionPool != null ? connectionPool.getLeased() : -1;
+    }
+
     public static Drive build(Credential credential) throws Exception {
         final NetHttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
         return new Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME).build();
@@ -84,7 +195,12 @@ public final class GoogleDriveFactory {
             Credential credential = authorize();
 
             // set up global Drive instance
-            drive = new Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME).build();
+            HttpRequestInitializer requestInitializer = request -> {
+                credential.initialize(request);
+                request.setConnectTimeout(connectTimeout);
+                request.setReadTimeout(readTimeout);
+            };
+            drive = new Drive.Builder(httpTransport, JSON_FACTORY, requestInitializer).setApplicationName(APPLICATION_NAME).build();
 
 
             logger.info("Google drive webservice client initialized.");
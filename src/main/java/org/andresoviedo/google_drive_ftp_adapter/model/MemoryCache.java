@@ -0,0 +1,589 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory tier in front of another cache (i.e. the {@link SQLiteCache}), so resolving the paths of the ftp clients
+ * doesn't hit the database every time.
+ * <p>
+ * Files are kept in a {@link CompactTreeIndex}, which finds the children of a folder by name without scanning it.
+ * Folders are loaded whole (all their children) on the first read and files read by id are kept on their own. The
+ * least recently used ones are evicted when there are too many files in memory. Folders too big to keep in memory are
+ * looked up in the underlying cache instead.
+ * <p>
+ * Reads share a read lock. Writes go to the underlying cache first, and then the files in memory or listed in a
+ * loaded folder are updated in place, like the underlying cache does, so the folders don't have to be loaded again.
+ *
+ * @author andresoviedo
+ */
+public final class MemoryCache implements Cache {
+
+    private static final Log logger = LogFactory.getLog(MemoryCache.class);
+
+    private final Cache delegate;
+
+    private final int maxFiles;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final Lock r = rwl.readLock();
+    private final Lock w = rwl.writeLock();
+
+    private CompactTreeIndex index = new CompactTreeIndex();
+
+    /**
+     * Folders with all their children in the index, and their last access
+     */
+    private final ConcurrentMap<String, Long> loadedFolders = new ConcurrentHashMap<>();
+
+    /**
+     * Files in the index because they were read by id, and their last access
+     */
+    private final ConcurrentMap<String, Long> looseFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Folders too big to keep their children in memory. File names are looked up in the underlying cache instead
+     */
+    private final Set<String> hugeFolders = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Incremented on every write, so files read from the underlying cache while it was being written are not kept
+     */
+    private long generation;
+
+    private final AtomicLong fileHits = new AtomicLong();
+
+    private final AtomicLong fileMisses = new AtomicLong();
+
+    private final AtomicLong childsHits = new AtomicLong();
+
+    private final AtomicLong childsMisses = new AtomicLong();
+
+    public MemoryCache(Cache delegate, Properties configuration) {
+        this.delegate = delegate;
+        this.maxFiles = Integer.parseInt(configuration.getProperty("cache.memory.maxFiles", "500000"));
+        logger.info("Memory cache. Max files: " + maxFiles);
+    }
+
+    @Override
+    public GFile getFile(String id) {
+        final long readGeneration;
+        r.lock();
+        try {
+            GFile file = index.getFile(id);
+            if (file != null) {
+                fileHits.incrementAndGet();
+                touch(id);
+                return withoutParents(file);
+            }
+            readGeneration = generation;
+        } finally {
+            r.unlock();
+        }
+        fileMisses.incrementAndGet();
+        GFile file = delegate.getFile(id);
+        if (file != null) {
+            w.lock();
+            try {
+                if (readGeneration == generation) {
+                    index.put(withoutParents(file.clone()));
+                    looseFiles.put(id, clock.incrementAndGet());
+                }
+            } finally {
+                w.unlock();
+            }
+            evictIfNeeded();
+        }
+        return file;
+    }
+
+    @Override
+    public List<GFile> getFiles(String folderId) {
+        final long readGeneration;
+        r.lock();
+        try {
+            if (loadedFolders.containsKey(folderId)) {
+                childsHits.incrementAndGet();
+                touch(folderId);
+                List<GFile> ret = index.getFiles(folderId);
+                for (GFile file : ret) {
+                    withoutParents(file);
+                }
+                return ret;
+            }
+            readGeneration = generation;
+        } finally {
+            r.unlock();
+        }
+        return loadFiles(folderId, readGeneration);
+    }
+
+    @Override
+    public GFile getFileByName(String parentId, String filename) throws IncorrectResultSizeDataAccessException {
+        final long readGeneration;
+        r.lock();
+        try {
+            if (loadedFolders.containsKey(parentId)) {
+                childsHits.incrementAndGet();
+                touch(parentId);
+                GFile file = index.getFileByName(parentId, filename);
+                return file == null ? null : withoutParents(file);
+            }
+            readGeneration = generation;
+        } finally {
+            r.unlock();
+        }
+        if (hugeFolders.contains(parentId)) {
+            // just one file, instead of all the children
+            return delegate.getFileByName(parentId, filename);
+        }
+
+        GFile ret = null;
+        int found = 0;
+        for (GFile child : loadFiles(parentId, readGeneration)) {
+            if (child.getName().equals(filename)) {
+                ret = child;
+                found++;
+            }
+        }
+        if (found > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, found);
+        }
+        return ret;
+    }
+
+    /**
+     * Read the children of the folder from the underlying cache and keep them in memory, unless the folder is too big
+     *
+     * @param folderId       the folder
+     * @param readGeneration generation when the folder was not found in memory
+     * @return the children
+     */
+    private List<GFile> loadFiles(String folderId, long readGeneration) {
+        childsMisses.incrementAndGet();
+        List<GFile> loaded = delegate.getFiles(folderId);
+        if (loaded.size() > maxFiles / 10) {
+            if (hugeFolders.size() > 1000) {
+                hugeFolders.clear();
+            }
+            hugeFolders.add(folderId);
+            return loaded;
+        }
+        w.lock();
+        try {
+            if (readGeneration == generation) {
+                List<GFile> childs = new ArrayList<>(loaded.size());
+                for (GFile file : loaded) {
+                    childs.add(withoutParents(file.clone()));
+                }
+                removeOrphans(index.replaceChilds(folderId, childs));
+                loadedFolders.put(folderId, clock.incrementAndGet());
+            }
+        } finally {
+            w.unlock();
+        }
+        evictIfNeeded();
+        return loaded;
+    }
+
+    @Override
+    public int addOrUpdateFile(GFile rootFile) {
+        return addOrUpdateFiles(Collections.singletonList(rootFile));
+    }
+
+    @Override
+    public int addOrUpdateFiles(List<GFile> files) {
+        int ret = delegate.addOrUpdateFiles(files);
+        update(() -> {
+            for (GFile file : files) {
+                write(file, file.getParents(), false);
+            }
+        });
+        return ret;
+    }
+
+    @Override
+    public int deleteFile(String id) {
+        int ret = delegate.deleteFile(id);
+        update(() -> remove(id));
+        return ret;
+    }
+
+    @Override
+    public String getRevision() {
+        return delegate.getRevision();
+    }
+
+    @Override
+    public void updateRevision(String revision) {
+        delegate.updateRevision(revision);
+    }
+
+    @Override
+    public void applyChanges(List<GChange> changes, String revision) {
+        delegate.applyChanges(changes, revision);
+        update(() -> applyChanges(changes));
+    }
+
+    @Override
+    public CompletableFuture<Void> applyChangesAsync(List<GChange> changes, String revision) {
+        // memory is updated once the changes are written, like the synchronous write does
+        return delegate.applyChangesAsync(changes, revision).thenRun(() -> update(() -> applyChanges(changes)));
+    }
+
+    /**
+     * Apply the changes to memory. It must be called holding the write lock
+     */
+    private void applyChanges(List<GChange> changes) {
+        for (GChange change : GChange.collapse(changes)) {
+            if (change.isDeletion()) {
+                remove(change.getFileId());
+                continue;
+            }
+            GFile file = change.getFile().clone();
+            if (!file.isDirectory() || index.contains(file.getId())) {
+                file.setRevision(change.getRevision());
+            } else {
+                // new folders don't get the revision, but we don't know if the folder is new, so the listings that
+                // would show it are read again from the underlying cache
+                unloadParents(file.getParents());
+                continue;
+            }
+            write(file, file.getParents(), false);
+        }
+    }
+
+    @Override
+    public List<String> getAllFoldersWithoutRevision() {
+        return delegate.getAllFoldersWithoutRevision();
+    }
+
+    @Override
+    public void evictFolder(String folderId) {
+        delegate.evictFolder(folderId);
+        update(() -> {
+            loadedFolders.remove(folderId);
+            hugeFolders.remove(folderId);
+            // children only in this folder are removed from the underlying cache
+            for (String orphan : index.removeChilds(folderId)) {
+                looseFiles.remove(orphan);
+                index.remove(orphan);
+            }
+            GFile folder = index.getFile(folderId);
+            if (folder != null) {
+                folder.setRevision(null);
+                index.put(withoutParents(folder));
+            } else {
+                removeOrphans(Collections.singletonList(folderId));
+            }
+        });
+    }
+
+    @Override
+    public void updateChilds(GFile file, List<GFile> newChilds) {
+        delegate.updateChilds(file, newChilds);
+        update(() -> {
+            if (index.contains(file.getId())) {
+                write(file, null, false);
+            }
+            List<String> orphans = index.removeChilds(file.getId());
+            for (GFile child : newChilds) {
+                write(child, child.getParents(), true);
+            }
+            removeOrphans(orphans);
+        });
+    }
+
+    @Override
+    public Set<String> getParents(String id) {
+        return delegate.getParents(id);
+    }
+
+    @Override
+    public void addToCrawlFrontier(List<String> folderIds) {
+        delegate.addToCrawlFrontier(folderIds);
+    }
+
+    @Override
+    public List<CrawlFrontierEntry> getCrawlFrontier(int max) {
+        return delegate.getCrawlFrontier(max);
+    }
+
+    @Override
+    public void saveCrawlPage(String groupId, List<String> folderIds, List<GFile> childs, String nextPageToken) {
+        delegate.saveCrawlPage(groupId, folderIds, childs, nextPageToken);
+        update(() -> saveCrawlPage(childs));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveCrawlPageAsync(String groupId, List<String> folderIds, List<GFile> childs,
+                                                      String nextPageToken) {
+        return delegate.saveCrawlPageAsync(groupId, folderIds, childs, nextPageToken)
+                .thenRun(() -> update(() -> saveCrawlPage(childs)));
+    }
+
+    /**
+     * Save the children of a crawled page in memory. It must be called holding the write lock
+     */
+    private void saveCrawlPage(List<GFile> childs) {
+        for (GFile child : childs) {
+            GFile file = child.clone();
+            if (file.isDirectory()) {
+                // subfolders already synchronized keep their revision
+                GFile cached = index.getFile(file.getId());
+                if (cached != null) {
+                    file.setRevision(cached.getRevision());
+                } else {
+                    unloadParents(file.getParents());
+                    continue;
+                }
+            }
+            write(file, file.getParents(), true);
+        }
+    }
+
+    @Override
+    public void completeCrawl(List<GFile> folders) {
+        delegate.completeCrawl(folders);
+        update(() -> {
+            for (GFile folder : folders) {
+                if (index.contains(folder.getId())) {
+                    write(folder, null, false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void failCrawl(List<String> folderIds, long backoff, long maxBackoff) {
+        delegate.failCrawl(folderIds, backoff, maxBackoff);
+    }
+
+    @Override
+    public void removeFromCrawlFrontier(List<String> folderIds) {
+        delegate.removeFromCrawlFrontier(folderIds);
+    }
+
+    /**
+     * @return number of files in memory
+     */
+    public int getSize() {
+        r.lock();
+        try {
+            return index.size();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @return number of folders with their children in memory
+     */
+    public int getLoadedFolders() {
+        return loadedFolders.size();
+    }
+
+    /**
+     * @return ratio of the files found in memory
+     */
+    public double getFileHitRatio() {
+        return ratio(fileHits.get(), fileMisses.get());
+    }
+
+    /**
+     * @return ratio of the folder children found in memory
+     */
+    public double getChildsHitRatio() {
+        return ratio(childsHits.get(), childsMisses.get());
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private void touch(String id) {
+        long now = clock.incrementAndGet();
+        loadedFolders.replace(id, now);
+        looseFiles.replace(id, now);
+    }
+
+    /**
+     * Files in memory don't have the parents, like the ones of the underlying cache, because only the loaded ones are
+     * known
+     */
+    private static GFile withoutParents(GFile file) {
+        file.setParents(null);
+        return file;
+    }
+
+    /**
+     * Apply a write to memory. If it fails, memory is cleared so it doesn't get out of sync with the underlying cache
+     */
+    private void update(Runnable update) {
+        w.lock();
+        try {
+            generation++;
+            update.run();
+        } catch (RuntimeException e) {
+            logger.error("Error updating memory cache. Clearing it...", e);
+            index = new CompactTreeIndex();
+            loadedFolders.clear();
+            looseFiles.clear();
+            hugeFolders.clear();
+        } finally {
+            w.unlock();
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * @return <code>true</code> if the file is in memory or it's listed in a loaded folder. It must be called holding
+     * the lock
+     */
+    private boolean isInMemory(String id, Set<String> parents) {
+        if (index.contains(id) || loadedFolders.containsKey(id) || looseFiles.containsKey(id)) {
+            return true;
+        }
+        if (parents != null) {
+            for (String parentId : parents) {
+                if (loadedFolders.containsKey(parentId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unload the given folders, if they are loaded, so their children are read again from the underlying cache. It
+     * must be called holding the write lock
+     */
+    private void unloadParents(Set<String> parents) {
+        if (parents != null) {
+            for (String parentId : parents) {
+                if (loadedFolders.containsKey(parentId)) {
+                    unload(parentId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unload the folder, removing the children that are not in any other loaded folder. It must be called holding
+     * the write lock
+     */
+    private void unload(String folderId) {
+        loadedFolders.remove(folderId);
+        removeOrphans(index.removeChilds(folderId));
+        removeOrphans(Collections.singletonList(folderId));
+    }
+
+    /**
+     * Write the file, if it's in memory or it's listed in a loaded folder. It must be called holding the write lock
+     *
+     * @param file       the file
+     * @param parents    the parents of the file, or <code>null</code> if they don't change
+     * @param addParents <code>true</code> if the parents are added to the current ones instead of replacing them
+     */
+    private void write(GFile file, Set<String> parents, boolean addParents) {
+        final String id = file.getId();
+        Set<String> listedIn = null;
+        if (parents != null) {
+            // only loaded folders have their children in memory
+            listedIn = new HashSet<>();
+            for (String parentId : parents) {
+                if (loadedFolders.containsKey(parentId)) {
+                    listedIn.add(parentId);
+                }
+            }
+            if (addParents) {
+                listedIn.addAll(index.getParents(id));
+            }
+        }
+        if ((listedIn == null || listedIn.isEmpty()) && !isInMemory(id, null)) {
+            return;
+        }
+        GFile copy = file.clone();
+        copy.setParents(listedIn);
+        index.put(copy);
+        if (listedIn != null && listedIn.isEmpty()) {
+            removeOrphans(Collections.singletonList(id));
+        }
+    }
+
+    /**
+     * Remove the file, and its children if it's a loaded folder. It must be called holding the write lock
+     */
+    private void remove(String id) {
+        loadedFolders.remove(id);
+        looseFiles.remove(id);
+        hugeFolders.remove(id);
+        List<String> orphans = index.removeChilds(id);
+        index.remove(id);
+        removeOrphans(orphans);
+    }
+
+    /**
+     * Remove the files that are not in any loaded folder and were not read by id. It must be called holding the write
+     * lock
+     */
+    private void removeOrphans(List<String> ids) {
+        for (String id : ids) {
+            if (!loadedFolders.containsKey(id) && !looseFiles.containsKey(id) && index.getParents(id).isEmpty()) {
+                index.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used folders and files until there's room for a tenth of the max files
+     */
+    private void evictIfNeeded() {
+        if (index.size() <= maxFiles) {
+            return;
+        }
+        w.lock();
+        try {
+            if (index.size() <= maxFiles) {
+                return;
+            }
+            List<Map.Entry<String, Long>> folders = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : loadedFolders.entrySet()) {
+                folders.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            List<Map.Entry<String, Long>> files = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : looseFiles.entrySet()) {
+                files.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            folders.sort(Map.Entry.comparingByValue());
+            files.sort(Map.Entry.comparingByValue());
+
+            int f = 0;
+            int l = 0;
+            final int target = maxFiles - maxFiles / 10;
+            while (index.size() > target && (f < folders.size() || l < files.size())) {
+                if (l == files.size() || f < folders.size() && folders.get(f).getValue() < files.get(l).getValue()) {
+                    unload(folders.get(f++).getKey());
+                } else {
+                    String id = files.get(l++).getKey();
+                    looseFiles.remove(id);
+                    removeOrphans(Collections.singletonList(id));
+                }
+            }
+            logger.debug("Memory cache evicted. Files: " + index.size() + ". Folders: " + loadedFolders.size());
+        } finally {
+            w.unlock();
+        }
+    }
+}
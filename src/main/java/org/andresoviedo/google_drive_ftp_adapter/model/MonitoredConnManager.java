@@ -0,0 +1,112 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection pool that counts the connections in use and the requests that had to wait for one, so we know when the
+ * pool is really saturated (the connections in the pool include the idle keep-alive ones).
+ *
+ * @author andresoviedo
+ */
+final class MonitoredConnManager extends ThreadSafeClientConnManager {
+
+    /**
+     * Requests waiting less than these millis for a connection aren't counted as waits
+     */
+    private static final long WAIT_THRESHOLD_MILLIS = 5;
+
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger peakLeased = new AtomicInteger();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    MonitoredConnManager(HttpParams params, SchemeRegistry schemeRegistry) {
+        super(params, schemeRegistry);
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    peakLeased.accumulateAndGet(leased.incrementAndGet(), Math::max);
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    timeouts.incrementAndGet();
+                    throw e;
+                } finally {
+                    long waited = System.nanoTime() - start;
+                    if (waited >= TimeUnit.MILLISECONDS.toNanos(WAIT_THRESHOLD_MILLIS)) {
+                        waits.incrementAndGet();
+                        waitNanos.addAndGet(waited);
+                    }
+                }
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+        try {
+            super.releaseConnection(connection, validDuration, timeUnit);
+        } finally {
+            leased.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of connections in use
+     */
+    int getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return max number of connections in use since the last call
+     */
+    int resetPeakLeased() {
+        return peakLeased.getAndSet(leased.get());
+    }
+
+    /**
+     * @return number of requests that waited for a connection since the last call
+     */
+    long resetWaits() {
+        return waits.getAndSet(0);
+    }
+
+    /**
+     * @return millis waited for a connection since the last call
+     */
+    long resetWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.getAndSet(0));
+    }
+
+    /**
+     * @return number of requests that didn't get a connection before the timeout since the last call
+     */
+    long resetTimeouts() {
+        return timeouts.getAndSet(0);
+    }
+}
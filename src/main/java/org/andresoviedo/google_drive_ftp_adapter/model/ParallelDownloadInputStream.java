@@ -0,0 +1,246 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Stream that downloads a file splitting it in ranges that are fetched concurrently, so we are not limited by the
+ * throughput of a single connection. Ranges are returned in order, and there are never more than
+ * <code>concurrency</code> ranges in memory (downloading or waiting to be read).
+ * <p>
+ * The size of the file is just a hint (i.e. the cached one, which can be stale). Every range comes with the real size
+ * of the file, so the download goes on if the file grew, and stops at the real end if it shrank.
+ *
+ * @author andresoviedo
+ */
+final class ParallelDownloadInputStream extends InputStream {
+
+    private static final Log logger = LogFactory.getLog(ParallelDownloadInputStream.class);
+
+    private final RangeFetcher rangeFetcher;
+
+    private final ExecutorService executor;
+
+    private final LongConsumer sizeChanged;
+
+    private long size;
+
+    private final int rangeSize;
+
+    private final Deque<PendingRange> ranges = new ArrayDeque<>();
+
+    /**
+     * Position of the next range to fetch
+     */
+    private long nextRange;
+
+    private byte[] current;
+
+    private int position;
+
+    private boolean closed;
+
+    /**
+     * @param rangeFetcher fetches the ranges
+     * @param executor     executor to download the ranges
+     * @param start        first byte to download
+     * @param size         expected size of the file
+     * @param rangeSize    size of every range
+     * @param concurrency  max number of ranges being downloaded at the same time
+     * @param sizeChanged  called with the real size of the file if it's not the expected one
+     */
+    ParallelDownloadInputStream(RangeFetcher rangeFetcher, ExecutorService executor, long start, long size, int rangeSize,
+                                int concurrency, LongConsumer sizeChanged) {
+        this.rangeFetcher = rangeFetcher;
+        this.executor = executor;
+        this.size = size;
+        this.sizeChanged = sizeChanged;
+        this.rangeSize = rangeSize;
+        this.nextRange = start;
+        for (int i = 0; i < concurrency; i++) {
+            fetchNextRange();
+        }
+    }
+
+    /**
+     * Wait for the first range, so the errors refusing the download (i.e. the file was deleted) are thrown before
+     * returning the stream instead of on the first read
+     *
+     * @throws IOException if the first range download failed
+     */
+    void awaitFirstRange() throws IOException {
+        try {
+            nextRange();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void fetchNextRange() {
+        if (nextRange >= size) {
+            return;
+        }
+        final long start = nextRange;
+        final long end = Math.min(size, start + rangeSize) - 1;
+        ranges.add(new PendingRange(start, end, executor.submit(() -> rangeFetcher.fetch(start, end))));
+        nextRange = end + 1;
+    }
+
+    /**
+     * Wait for the next range to be downloaded
+     *
+     * @return <code>false</code> if there are no more ranges
+     * @throws IOException if range download failed
+     */
+    private boolean nextRange() throws IOException {
+        PendingRange pending = ranges.poll();
+        if (pending == null) {
+            return false;
+        }
+        if (pending.start >= size) {
+            return end(pending);
+        }
+        Range range;
+        try {
+            range = pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for range");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        if (range.fileSize >= 0 && range.fileSize != size) {
+            logger.warn("Size of the file is " + range.fileSize + " but " + size + " was expected");
+            size = range.fileSize;
+            sizeChanged.accept(size);
+            if (pending.start >= size) {
+                return end(pending);
+            }
+        }
+        long expected = Math.min(pending.end, size - 1) - pending.start + 1;
+        if (range.content.length < expected) {
+            throw new EOFException("Range incomplete. Expected " + expected + " bytes but got " + range.content.length);
+        }
+        current = range.content;
+        position = 0;
+        // the slot is free, so we can start downloading the next one (or more, if the file grew)
+        fetchNextRange();
+        return true;
+    }
+
+    /**
+     * The file is smaller than expected, so the pending ranges are beyond the end
+     */
+    private boolean end(PendingRange pending) {
+        pending.future.cancel(true);
+        for (PendingRange range : ranges) {
+            range.future.cancel(true);
+        }
+        ranges.clear();
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            if (!nextRange()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        current = null;
+        for (PendingRange range : ranges) {
+            range.future.cancel(true);
+        }
+        ranges.clear();
+        logger.debug("Parallel download closed");
+    }
+
+    private static final class PendingRange {
+
+        private final long start;
+
+        private final long end;
+
+        private final Future<Range> future;
+
+        private PendingRange(long start, long end, Future<Range> future) {
+            this.start = start;
+            this.end = end;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Content of a range and the real size of the file
+     */
+    static final class Range {
+
+        private final byte[] content;
+
+        private final long fileSize;
+
+        /**
+         * @param content  the content. It's shorter than requested if the range is beyond the end of the file
+         * @param fileSize size of the file (i.e. from the <code>Content-Range</code> header) or -1 if unknown
+         */
+        Range(byte[] content, long fileSize) {
+            this.content = content;
+            this.fileSize = fileSize;
+        }
+    }
+
+    /**
+     * Downloads a range of the file
+     */
+    @FunctionalInterface
+    interface RangeFetcher {
+        /**
+         * @param start first byte
+         * @param end   last byte (inclusive)
+         * @return the range content
+         * @throws IOException if download fails
+         */
+        Range fetch(long start, long end) throws IOException;
+    }
+}
@@ -0,0 +1,189 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket that keeps us under the google drive quota (requests per 100 seconds per user).
+ * <p>
+ * The allowed rate grows additively while requests succeed and is cut in half whenever google answers with a rate
+ * limit error (403 <code>userRateLimitExceeded</code> or 429). Threads waiting for a token sleep on their own, so a
+ * caller backing off doesn't block the rest of the process.
+ *
+ * @author andresoviedo
+ */
+public final class QuotaGovernor {
+
+    private static final Log LOG = LogFactory.getLog(QuotaGovernor.class);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Google drive quota window
+     */
+    private static final int QUOTA_WINDOW_SECONDS = 100;
+
+    /**
+     * Minimum rate we fall back to when google keeps throttling us
+     */
+    private static final double MIN_RATE = 0.5;
+
+    /**
+     * Factor applied to the rate when google reports we are exceeding the quota
+     */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final double maxRate;
+
+    private final double burst;
+
+    /**
+     * Current rate in requests/second (stored as double raw bits)
+     */
+    private final AtomicLong rate;
+
+    /**
+     * Theoretical time (as of {@link System#nanoTime()}) when the bucket gets empty
+     */
+    private final AtomicLong emptyTime = new AtomicLong(System.nanoTime());
+
+    /**
+     * Last time we reduced the rate, so a burst of throttled requests only counts once
+     */
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime() - NANOS_PER_SECOND);
+
+    /**
+     * @param requestsPer100Seconds the google drive quota
+     * @param initialRate           requests/second we start with
+     * @param burst                 number of requests that can be executed immediately after being idle
+     */
+    public QuotaGovernor(int requestsPer100Seconds, double initialRate, int burst) {
+        if (requestsPer100Seconds <= 0 || initialRate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Quota, initial rate and burst must be positive");
+        }
+        this.maxRate = (double) requestsPer100Seconds / QUOTA_WINDOW_SECONDS;
+        this.burst = burst;
+        this.rate = new AtomicLong(Double.doubleToLongBits(Math.max(MIN_RATE, Math.min(maxRate, initialRate))));
+    }
+
+    public static QuotaGovernor fromConfiguration(Properties configuration) {
+        return new QuotaGovernor(
+                Integer.parseInt(configuration.getProperty("google.quota.requestsPer100Seconds", "1000")),
+                Double.parseDouble(configuration.getProperty("google.quota.initialRate", "5")),
+                Integer.parseInt(configuration.getProperty("google.quota.burst", "10")));
+    }
+
+    /**
+     * @param e the exception returned by google
+     * @return <code>true</code> if the error means we are exceeding the quota
+     */
+    public static boolean isRateLimitExceeded(GoogleJsonResponseException e) {
+        if (e.getStatusCode() == 429) {
+            return true;
+        }
+        if (e.getStatusCode() != 403 || e.getDetails() == null || e.getDetails().getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo error : e.getDetails().getErrors()) {
+            if ("userRateLimitExceeded".equals(error.getReason()) || "rateLimitExceeded".equals(error.getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait until there is a token available for a new request
+     *
+     * @throws InterruptedException if thread was interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Wait until there are enough tokens available for the specified number of requests (i.e. a batch request)
+     *
+     * @param permits number of requests
+     * @throws InterruptedException if thread was interrupted while waiting
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long waitNanos = reserve(permits, System.nanoTime());
+        if (waitNanos > 0) {
+            LOG.trace("Quota reached. Waiting " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " millis...");
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Reserve the tokens
+     *
+     * @param permits number of tokens
+     * @param now     current time in nanos
+     * @return nanos the caller has to wait before executing the request
+     */
+    long reserve(int permits, long now) {
+        while (true) {
+            final long interval = (long) (NANOS_PER_SECOND / getRate());
+            final long current = emptyTime.get();
+            final long next = Math.max(current, now) + interval * permits;
+            if (emptyTime.compareAndSet(current, next)) {
+                return next - (long) (interval * burst) - now;
+            }
+        }
+    }
+
+    /**
+     * Notify the request was successful, so we can increase the rate additively (around 1 request/second every second)
+     */
+    public void onSuccess() {
+        while (true) {
+            final long current = rate.get();
+            final double currentRate = Double.longBitsToDouble(current);
+            if (currentRate >= maxRate) {
+                return;
+            }
+            final double newRate = Math.min(maxRate, currentRate + 1 / currentRate);
+            if (rate.compareAndSet(current, Double.doubleToLongBits(newRate))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify google told us we are exceeding the quota, so we cut the rate
+     */
+    public void onRateLimitExceeded() {
+        final long now = System.nanoTime();
+        final long last = lastDecrease.get();
+        if (now - last < NANOS_PER_SECOND || !lastDecrease.compareAndSet(last, now)) {
+            // somebody else already decreased the rate for this burst of errors
+            return;
+        }
+        while (true) {
+            final long current = rate.get();
+            final double newRate = Math.max(MIN_RATE, Double.longBitsToDouble(current) * DECREASE_FACTOR);
+            if (rate.compareAndSet(current, Double.doubleToLongBits(newRate))) {
+                LOG.info("Quota exceeded. New rate is " + String.format("%.2f", newRate) + " requests/second");
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return current rate in requests/second
+     */
+    public double getRate() {
+        return Double.longBitsToDouble(rate.get());
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+}
@@ -0,0 +1,48 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+/**
+ * Priority of the google drive requests. The priority is set per thread, so the requests done by the ftp clients are
+ * {@link #INTERACTIVE} unless the thread says otherwise.
+ *
+ * @author andresoviedo
+ */
+public enum RequestPriority {
+
+    /**
+     * Requests done by ftp clients, which are waiting for the response
+     */
+    INTERACTIVE,
+    /**
+     * Polling of the remote changes
+     */
+    CHANGES,
+    /**
+     * Background synchronization of the folders
+     */
+    CRAWL;
+
+    private static final ThreadLocal<RequestPriority> CURRENT = ThreadLocal.withInitial(() -> INTERACTIVE);
+
+    /**
+     * @return priority of the requests done by the current thread
+     */
+    public static RequestPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Run the task with the given priority, restoring the previous one afterwards
+     *
+     * @param priority priority of the requests done by the task
+     * @param task     the task
+     */
+    public static void run(RequestPriority priority, Runnable task) {
+        RequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        try {
+            task.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which request gets the next permits of the {@link QuotaGovernor} when there are requests of several
+ * {@link RequestPriority priorities} waiting, so a big synchronization doesn't delay the ftp clients.
+ * <p>
+ * Requests wait in a queue per priority. A dispatcher thread chooses the queue using smooth weighted round robin (i.e.
+ * with weights 10, 4, 1 interactive requests get 10 of every 15 permits when all the queues are busy), and then it
+ * waits for a permit of the quota governor on behalf of the request at the head of the queue. Permits are granted one
+ * by one, so a big batch request doesn't delay the interactive requests arriving meanwhile. Requests waiting longer
+ * than the aging time for their next permit are served first whatever their priority, so background requests are
+ * never starved. The wait starts again after every permit, so an aged batch request gets just one permit before
+ * competing again by priority.
+ *
+ * @author andresoviedo
+ */
+public final class RequestScheduler {
+
+    private static final Log logger = LogFactory.getLog(RequestScheduler.class);
+
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+    private final QuotaGovernor quotaGovernor;
+
+    private final int[] weights;
+
+    private final long agingNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Deque<Ticket>[] queues;
+
+    /**
+     * Current weights of the smooth weighted round robin
+     */
+    private final int[] currentWeights;
+
+    private final AtomicLong[] dispatched;
+
+    private final AtomicLong[] waitNanos;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * @param quotaGovernor the quota governor
+     * @param weights       weight of every priority (in the order of {@link RequestPriority#values()})
+     * @param agingMillis   max millis a request waits before being dispatched first
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RequestScheduler(QuotaGovernor quotaGovernor, int[] weights, long agingMillis) {
+        if (weights.length != PRIORITIES.length) {
+            throw new IllegalArgumentException("Expected " + PRIORITIES.length + " weights");
+        }
+        this.quotaGovernor = quotaGovernor;
+        this.weights = weights.clone();
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        this.queues = new Deque[PRIORITIES.length];
+        this.currentWeights = new int[PRIORITIES.length];
+        this.dispatched = new AtomicLong[PRIORITIES.length];
+        this.waitNanos = new AtomicLong[PRIORITIES.length];
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues[i] = new ArrayDeque<>();
+            dispatched[i] = new AtomicLong();
+            waitNanos[i] = new AtomicLong();
+        }
+    }
+
+    public static RequestScheduler fromConfiguration(QuotaGovernor quotaGovernor, Properties configuration) {
+        return new RequestScheduler(quotaGovernor, new int[]{
+                Integer.parseInt(configuration.getProperty("google.priority.interactiveWeight", "10")),
+                Integer.parseInt(configuration.getProperty("google.priority.changesWeight", "4")),
+                Integer.parseInt(configuration.getProperty("google.priority.crawlWeight", "1"))},
+                Long.parseLong(configuration.getProperty("google.priority.agingMillis", "5000")));
+    }
+
+    /**
+     * Wait until the request is dispatched and the quota governor has the permits
+     *
+     * @param priority priority of the request
+     * @param permits  number of permits
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(RequestPriority priority, int permits) throws InterruptedException {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread dispatcher = new Thread(this::dispatch, "request-scheduler");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+
+        final Ticket ticket = new Ticket(priority, permits, System.nanoTime());
+        final Deque<Ticket> queue = queues[priority.ordinal()];
+        lock.lock();
+        try {
+            queue.add(ticket);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            ticket.granted.await();
+        } catch (InterruptedException e) {
+            lock.lock();
+            try {
+                queue.remove(ticket);
+                ticket.cancelled = true;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+        dispatched[priority.ordinal()].incrementAndGet();
+        waitNanos[priority.ordinal()].addAndGet(System.nanoTime() - ticket.created);
+    }
+
+    private void dispatch() {
+        // a permit acquired for a request that was interrupted meanwhile goes to the next one
+        boolean acquired = false;
+        while (true) {
+            try {
+                final Ticket ticket;
+                lock.lock();
+                try {
+                    Ticket next;
+                    while ((next = next(System.nanoTime())) == null) {
+                        notEmpty.await();
+                    }
+                    ticket = next;
+                } finally {
+                    lock.unlock();
+                }
+                if (!acquired) {
+                    quotaGovernor.acquire();
+                    acquired = true;
+                }
+                lock.lock();
+                try {
+                    if (!ticket.cancelled) {
+                        grant(ticket, System.nanoTime());
+                        acquired = false;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Request scheduler interrupted");
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error dispatching request", e);
+            }
+        }
+    }
+
+    /**
+     * Choose the request that gets the next permit. It must be called holding the lock
+     *
+     * @param now current nano time
+     * @return the request at the head of the chosen queue or <code>null</code> if there are no requests waiting
+     */
+    Ticket next(long now) {
+        // anti starvation: the request waiting the longest for a permit goes first if it's waiting too much
+        int oldest = -1;
+        for (int i = 0; i < queues.length; i++) {
+            Ticket head = queues[i].peek();
+            if (head != null && now - head.waitingSince >= agingNanos
+                    && (oldest == -1 || head.waitingSince - queues[oldest].peek().waitingSince < 0)) {
+                oldest = i;
+            }
+        }
+        if (oldest != -1) {
+            return queues[oldest].peek();
+        }
+
+        // smooth weighted round robin among the priorities with requests waiting
+        int selected = -1;
+        int total = 0;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty()) {
+                continue;
+            }
+            currentWeights[i] += weights[i];
+            total += weights[i];
+            if (selected == -1 || currentWeights[i] > currentWeights[selected]) {
+                selected = i;
+            }
+        }
+        if (selected == -1) {
+            return null;
+        }
+        currentWeights[selected] -= total;
+        return queues[selected].peek();
+    }
+
+    /**
+     * Grant a permit to the request, which is woken up when it has all of them. It must be called holding the lock
+     *
+     * @param ticket the request
+     * @param now    current nano time, when the request starts waiting for the next permit
+     */
+    void grant(Ticket ticket, long now) {
+        ticket.waitingSince = now;
+        if (--ticket.remaining <= 0) {
+            queues[ticket.priority.ordinal()].remove(ticket);
+            ticket.granted.countDown();
+        }
+    }
+
+    /**
+     * Queue a request without waiting for it to be dispatched (used by tests)
+     */
+    Ticket enqueue(RequestPriority priority, int permits, long created) {
+        Ticket ticket = new Ticket(priority, permits, created);
+        queues[priority.ordinal()].add(ticket);
+        return ticket;
+    }
+
+    /**
+     * @param priority the priority
+     * @return number of requests of the priority dispatched so far
+     */
+    public long getDispatched(RequestPriority priority) {
+        return dispatched[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority the priority
+     * @return average millis requests of the priority waited to be dispatched
+     */
+    public double getAverageWaitMillis(RequestPriority priority) {
+        long count = dispatched[priority.ordinal()].get();
+        return count == 0 ? 0 : waitNanos[priority.ordinal()].get() / 1e6 / count;
+    }
+
+    static final class Ticket {
+
+        private final RequestPriority priority;
+
+        private final long created;
+
+        /**
+         * When the request started waiting for its next permit
+         */
+        private long waitingSince;
+
+        private final CountDownLatch granted = new CountDownLatch(1);
+
+        /**
+         * The request was interrupted while waiting, so it's not in the queue anymore
+         */
+        private boolean cancelled;
+
+        /**
+         * Permits not granted yet
+         */
+        private int remaining;
+
+        private Ticket(RequestPriority priority, int permits, long created) {
+            this.priority = priority;
+            this.remaining = permits;
+            this.created = created;
+            this.waitingSince = created;
+        }
+
+        RequestPriority getPriority() {
+            return priority;
+        }
+    }
+}
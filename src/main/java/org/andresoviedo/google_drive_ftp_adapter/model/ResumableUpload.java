@@ -0,0 +1,232 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.*;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Upload of a stream using the google drive resumable upload protocol.
+ * <p>
+ * The content is sent in chunks. The session uri is kept during the whole upload, so whenever a chunk fails we ask
+ * google for the last byte it committed and resend the chunk from there.
+ *
+ * @author andresoviedo
+ */
+final class ResumableUpload {
+
+    private static final Log logger = LogFactory.getLog(ResumableUpload.class);
+
+    private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v3/files";
+
+    /**
+     * Google requires chunks to be multiple of 256KB (except the last one)
+     */
+    private static final int CHUNK_GRANULARITY = 256 * 1024;
+
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    private final Drive drive;
+
+    private final DriveRequestExecutor requestExecutor;
+
+    private final byte[] chunk;
+
+    /**
+     * Uri of the upload session
+     */
+    private GenericUrl sessionUri;
+
+    /**
+     * Number of bytes committed by google
+     */
+    private long committed;
+
+    /**
+     * Whether last attempt to send the chunk failed, so we don't know what google committed
+     */
+    private boolean recovering;
+
+    ResumableUpload(Drive drive, DriveRequestExecutor requestExecutor, int chunkSize) {
+        this.drive = drive;
+        this.requestExecutor = requestExecutor;
+        this.chunk = new byte[Math.max(1, chunkSize / CHUNK_GRANULARITY) * CHUNK_GRANULARITY];
+    }
+
+    /**
+     * Upload the content
+     *
+     * @param fileId     id of the file to update or <code>null</code> to create a new file
+     * @param metadata   metadata of the file
+     * @param addParents comma separated list of parents to add (only when updating)
+     * @param mimeType   content mime type
+     * @param fields     fields of the file to return
+     * @param content    the content
+     * @return the uploaded file
+     * @throws IOException if the upload fails
+     */
+    File upload(String fileId, File metadata, String addParents, String mimeType, String fields, InputStream content)
+            throws IOException {
+        startSession(fileId, metadata, addParents, mimeType, fields);
+
+        long chunkStart = 0;
+        while (true) {
+            int length = fill(content);
+            boolean last = length < chunk.length;
+            long chunkEnd = chunkStart + length;
+
+            // google can commit less bytes than sent, so we keep sending until the whole chunk is committed
+            File uploadedFile;
+            do {
+                uploadedFile = sendChunk(chunkStart, length, last);
+            } while (uploadedFile == null && committed < chunkEnd);
+
+            if (uploadedFile != null) {
+                logger.info("Upload completed. Bytes uploaded: " + chunkEnd);
+                return uploadedFile;
+            }
+            if (last) {
+                throw new IOException("Upload not completed by google. Bytes committed: " + committed);
+            }
+            logger.debug("Bytes uploaded: " + committed);
+            chunkStart = chunkEnd;
+        }
+    }
+
+    private void startSession(String fileId, File metadata, String addParents, String mimeType, String fields) throws IOException {
+        final GenericUrl url = new GenericUrl(fileId == null ? UPLOAD_URL : UPLOAD_URL + "/" + fileId);
+        url.put("uploadType", "resumable");
+        url.put("fields", fields);
+        if (addParents != null) {
+            url.put("addParents", addParents);
+        }
+
+        sessionUri = requestExecutor.execute("startUpload(" + metadata.getName() + ")", () -> {
+            final HttpContent json = new JsonHttpContent(drive.getJsonFactory(), metadata);
+            final HttpRequest request;
+            if (fileId == null) {
+                request = drive.getRequestFactory().buildPostRequest(url, json);
+            } else if (drive.getRequestFactory().getTransport().supportsMethod(HttpMethods.PATCH)) {
+                request = drive.getRequestFactory().buildPatchRequest(url, json);
+            } else {
+                request = drive.getRequestFactory().buildPostRequest(url, json);
+                request.getHeaders().set("X-HTTP-Method-Override", HttpMethods.PATCH);
+            }
+            request.getHeaders().set("X-Upload-Content-Type", mimeType);
+            request.setThrowExceptionOnExecuteError(false);
+
+            HttpResponse response = request.execute();
+            try {
+                if (!response.isSuccessStatusCode()) {
+                    throw GoogleJsonResponseException.from(drive.getJsonFactory(), response);
+                }
+                return new GenericUrl(response.getHeaders().getLocation());
+            } finally {
+                response.disconnect();
+            }
+        });
+        committed = 0;
+        recovering = false;
+        logger.debug("Upload session started");
+    }
+
+    /**
+     * Send the bytes of the chunk not yet committed
+     *
+     * @param chunkStart position of the chunk in the whole content
+     * @param length     length of the chunk
+     * @param last       <code>true</code> if this is the last chunk (so we know the content total size)
+     * @return the file if upload completed or <code>null</code> otherwise
+     * @throws IOException if the chunk couldn't be sent after retrying
+     */
+    private File sendChunk(long chunkStart, int length, boolean last) throws IOException {
+        final long total = chunkStart + length;
+        return requestExecutor.execute("uploadChunk(" + chunkStart + ")", () -> {
+            if (recovering) {
+                File file = queryCommitted();
+                if (file != null) {
+                    // last chunk was committed but we didn't get the response
+                    recovering = false;
+                    return file;
+                }
+                if (committed < chunkStart || committed > total) {
+                    throw new IllegalStateException("Unexpected bytes committed by google: " + committed);
+                }
+                if (committed == total && !last) {
+                    recovering = false;
+                    return null;
+                }
+            }
+            recovering = true;
+
+            final int offset = (int) (committed - chunkStart);
+            final HttpContent content = new ByteArrayContent(null, chunk, offset, length - offset);
+            final HttpRequest request = drive.getRequestFactory().buildPutRequest(sessionUri, content);
+            request.getHeaders().setContentRange(length - offset == 0 ? "bytes */" + total
+                    : "bytes " + committed + "-" + (total - 1) + "/" + (last ? String.valueOf(total) : "*"));
+
+            File file = handleResponse(request);
+            recovering = false;
+            return file;
+        });
+    }
+
+    /**
+     * Ask google for the bytes committed so far
+     *
+     * @return the file if upload was already completed or <code>null</code> otherwise
+     * @throws IOException if the query fails
+     */
+    private File queryCommitted() throws IOException {
+        logger.info("Querying upload status...");
+        final HttpRequest request = drive.getRequestFactory().buildPutRequest(sessionUri, new EmptyContent());
+        request.getHeaders().setContentRange("bytes */*");
+        return handleResponse(request);
+    }
+
+    private File handleResponse(HttpRequest request) throws IOException {
+        request.setThrowExceptionOnExecuteError(false);
+        request.setParser(drive.getObjectParser());
+
+        HttpResponse response = request.execute();
+        try {
+            if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                // range has the form "bytes=0-1234"
+                String range = response.getHeaders().getRange();
+                committed = range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+                return null;
+            }
+            if (response.isSuccessStatusCode()) {
+                return response.parseAs(File.class);
+            }
+            throw GoogleJsonResponseException.from(drive.getJsonFactory(), response);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Read the next chunk from the content
+     *
+     * @param content the content
+     * @return number of bytes read. If it's less than the chunk size, then the content is over
+     * @throws IOException if there is an error reading the content
+     */
+    private int fill(InputStream content) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int read = content.read(chunk, length, chunk.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,74 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Decides whether a failed google drive request should be retried and how long to wait before doing it.
+ *
+ * @author andresoviedo
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param errorClass the type of error
+     * @param attempt    number of attempts already done (starting at 1)
+     * @return millis to wait before next attempt or a negative number if the request must not be retried
+     */
+    long nextDelay(ErrorClass errorClass, int attempt);
+
+    /**
+     * Type of errors we can get when calling google
+     */
+    enum ErrorClass {
+        /**
+         * 5xx
+         */
+        SERVER_ERROR,
+        /**
+         * 429 or 403 rate limit exceeded
+         */
+        RATE_LIMITED,
+        /**
+         * Connect or read timeout
+         */
+        TIMEOUT,
+        /**
+         * Any other network error
+         */
+        NETWORK,
+        /**
+         * 404. Retrying won't make the file appear
+         */
+        NOT_FOUND,
+        /**
+         * Any other 4xx (unauthorized, bad request, ...)
+         */
+        CLIENT_ERROR;
+
+        public static ErrorClass of(IOException e) {
+            if (e instanceof GoogleJsonResponseException && QuotaGovernor.isRateLimitExceeded((GoogleJsonResponseException) e)) {
+                return RATE_LIMITED;
+            }
+            if (e instanceof HttpResponseException) {
+                int statusCode = ((HttpResponseException) e).getStatusCode();
+                if (statusCode == 404) {
+                    return NOT_FOUND;
+                }
+                return statusCode >= 500 ? SERVER_ERROR : CLIENT_ERROR;
+            }
+            if (e instanceof SocketTimeoutException) {
+                return TIMEOUT;
+            }
+            if (e instanceof InterruptedIOException) {
+                // the thread was interrupted, so we must not retry
+                return CLIENT_ERROR;
+            }
+            return NETWORK;
+        }
+    }
+}
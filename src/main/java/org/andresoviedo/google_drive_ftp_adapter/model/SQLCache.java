@@ -29,10 +29,15 @@ public final class SQLCache implements Cache {
 
     private static final String TABLE_PARAMETERS = "parameters";
 
+    private static final String TABLE_CRAWL_FRONTIER = "crawl_frontier";
+
     private final RowMapper<GFile> rowMapper;
 
     private final RowMapper<String> parentIdMapper = (rs, rowNum) -> rs.getString("parentId");
 
+    private final RowMapper<CrawlFrontierEntry> crawlFrontierMapper = (rs, rowNum) -> new CrawlFrontierEntry(
+            rs.getString("folderId"), rs.getString("groupId"), rs.getString("pageToken"), rs.getInt("retries"));
+
     private final JdbcTemplate jdbcTemplate;
 
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
@@ -87,6 +92,15 @@ public final class SQLCache implements Cache {
 
             LOG.info("Database created");
         }
+
+        try {
+            jdbcTemplate.queryForObject("select count(*) from " + TABLE_CRAWL_FRONTIER, Integer.class);
+        } catch (DataAccessException e) {
+            // databases created before the crawl frontier was persisted don't have it
+            jdbcTemplate.execute("create table " + TABLE_CRAWL_FRONTIER + " (folderId character varying(100), "
+                    + "groupId character varying(100), pageToken character varying(1000), retries integer default 0 not null, "
+                    + "nextAttempt bigint default 0 not null, primary key (folderId))");
+        }
     }
 
     /*
@@ -109,24 +123,31 @@ public final class SQLCache implements Cache {
     }
 
     public int addOrUpdateFile(GFile file) {
+        return addOrUpdateFiles(Collections.singletonList(file));
+    }
+
+    @Override
+    public int addOrUpdateFiles(List<GFile> files) {
         List<String> queries = new ArrayList<>();
         List<Object[]> args = new ArrayList<>();
 
-        GFile cachedFile = getFile(file.getId());
-        if (cachedFile == null){
-            queries.add("insert into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
-                    + " values(?,?,?,?,?,?,?,?)");
-            args.add(new Object[]{file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
-                    file.getLastModified(), file.getMimeType(), file.getMd5Checksum()});
-        }
-        else {
-            queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=?"
-                    + " where id=?");
-            args.add(new Object[]{file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
-                    file.getLastModified(), file.getMimeType(), file.getMd5Checksum(), file.getId()});
-        }
+        for (GFile file : files) {
+            GFile cachedFile = getFile(file.getId());
+            if (cachedFile == null){
+                queries.add("insert into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                        + " values(?,?,?,?,?,?,?,?)");
+                args.add(new Object[]{file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
+                        file.getLastModified(), file.getMimeType(), file.getMd5Checksum()});
+            }
+            else {
+                queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=?"
+                        + " where id=?");
+                args.add(new Object[]{file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
+                        file.getLastModified(), file.getMimeType(), file.getMd5Checksum(), file.getId()});
+            }
 
-        updateParents(file, queries, args);
+            updateParents(file, queries, args);
+        }
 
         return executeInTransaction(queries, args);
     }
@@ -184,6 +205,43 @@ public final class SQLCache implements Cache {
         }
     }
 
+    @Override
+    public void applyChanges(List<GChange> changes, String revision) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+
+        for (GChange change : GChange.collapse(changes)) {
+            if (change.isDeletion()) {
+                queries.add("delete from " + TABLE_CHILDS + " where parentId=?");
+                queries.add("delete from " + TABLE_CHILDS + " where childId=?");
+                queries.add("delete from " + TABLE_FILES + " where id=?");
+                args.add(new Object[]{change.getFileId()});
+                args.add(new Object[]{change.getFileId()});
+                args.add(new Object[]{change.getFileId()});
+                continue;
+            }
+            GFile file = change.getFile();
+            GFile cachedFile = getFile(file.getId());
+            if (cachedFile == null) {
+                // new folders don't get the revision so they are synchronized afterwards
+                queries.add("insert into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                        + " values(?,?,?,?,?,?,?,?)");
+                args.add(new Object[]{file.getId(), file.isDirectory() ? null : change.getRevision(), file.getName(),
+                        file.isDirectory(), file.getSize(), file.getLastModified(), file.getMimeType(), file.getMd5Checksum()});
+            } else {
+                queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=?"
+                        + " where id=?");
+                args.add(new Object[]{change.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
+                        file.getLastModified(), file.getMimeType(), file.getMd5Checksum(), file.getId()});
+            }
+            updateParents(file, queries, args);
+        }
+        queries.add("update " + TABLE_PARAMETERS + " set value=? where id='revision'");
+        args.add(new Object[]{revision});
+
+        executeInTransaction(queries, args);
+    }
+
     private int executeInTransaction(final List<String> queries, final List<Object[]> args) {
         return jdbcTemplate.execute((ConnectionCallback<Integer>) connection -> {
             w.lock();
@@ -241,6 +299,131 @@ public final class SQLCache implements Cache {
         }
     }
 
+    @Override
+    public void evictFolder(String folderId) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        queries.add("delete from " + TABLE_FILES + " where id in (select childId from " + TABLE_CHILDS + " where parentId=?)"
+                + " and id not in (select childId from " + TABLE_CHILDS + " where parentId<>?)");
+        args.add(new Object[]{folderId, folderId});
+        queries.add("delete from " + TABLE_CHILDS + " where parentId=?");
+        args.add(new Object[]{folderId});
+        queries.add("update " + TABLE_FILES + " set revision=null where id=?");
+        args.add(new Object[]{folderId});
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public void addToCrawlFrontier(List<String> folderIds) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (String folderId : folderIds) {
+            queries.add("insert into " + TABLE_CRAWL_FRONTIER + " (folderId,retries) select ?,0 from " + TABLE_PARAMETERS
+                    + " where id='revision' and not exists (select 1 from " + TABLE_CRAWL_FRONTIER + " where folderId=?)");
+            args.add(new Object[]{folderId, folderId});
+        }
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public List<CrawlFrontierEntry> getCrawlFrontier(int max) {
+        final long now = System.currentTimeMillis();
+        r.lock();
+        try {
+            // groups whose listing was interrupted go whole (there are a few, the ones being listed when it stopped)
+            final List<CrawlFrontierEntry> ret = new ArrayList<>(CrawlFrontierEntry.wholeGroups(jdbcTemplate.query(
+                    "select * from " + TABLE_CRAWL_FRONTIER + " where nextAttempt<=? and pageToken is not null"
+                            + " order by groupId, folderId", new Object[]{now}, crawlFrontierMapper), max));
+            if (ret.size() < max) {
+                JdbcTemplate template = new JdbcTemplate(jdbcTemplate.getDataSource());
+                template.setMaxRows(max - ret.size());
+                ret.addAll(template.query("select * from " + TABLE_CRAWL_FRONTIER
+                                + " where nextAttempt<=? and pageToken is null order by folderId",
+                        new Object[]{now}, crawlFrontierMapper));
+            }
+            return ret;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public void saveCrawlPage(String groupId, List<String> folderIds, List<GFile> childs, String nextPageToken) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (GFile child : childs) {
+            GFile cachedChild = getFile(child.getId());
+            if (cachedChild == null) {
+                queries.add("insert into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                        + " values(?,?,?,?,?,?,?,?)");
+                args.add(new Object[]{child.getId(), child.getRevision(), child.getName(), child.isDirectory(), child.getSize(),
+                        child.getLastModified(), child.getMimeType(), child.getMd5Checksum()});
+            } else {
+                // subfolders already synchronized keep their revision
+                queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=?"
+                        + " where id=?");
+                args.add(new Object[]{child.isDirectory() ? cachedChild.getRevision() : child.getRevision(), child.getName(),
+                        child.isDirectory(), child.getSize(), child.getLastModified(), child.getMimeType(),
+                        child.getMd5Checksum(), child.getId()});
+            }
+            for (String parent : child.getParents()) {
+                queries.add("insert into " + TABLE_CHILDS + " (id,childId,parentId) select ?,?,? from " + TABLE_PARAMETERS
+                        + " where id='revision' and not exists (select 1 from " + TABLE_CHILDS + " where childId=? and parentId=?)");
+                args.add(new Object[]{childId.getAndIncrement(), child.getId(), parent, child.getId(), parent});
+            }
+            if (child.isDirectory() && (cachedChild == null || cachedChild.getRevision() == null)) {
+                queries.add("insert into " + TABLE_CRAWL_FRONTIER + " (folderId,retries) select ?,0 from " + TABLE_PARAMETERS
+                        + " where id='revision' and not exists (select 1 from " + TABLE_CRAWL_FRONTIER + " where folderId=?)");
+                args.add(new Object[]{child.getId(), child.getId()});
+            }
+        }
+        for (String folderId : folderIds) {
+            queries.add("update " + TABLE_CRAWL_FRONTIER + " set groupId=?,pageToken=?,retries=0,nextAttempt=0 where folderId=?");
+            args.add(new Object[]{groupId, nextPageToken, folderId});
+        }
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public void completeCrawl(List<GFile> folders) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (GFile folder : folders) {
+            queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=? where id=?");
+            args.add(new Object[]{folder.getRevision(), folder.getName(), folder.isDirectory(), folder.getSize(),
+                    folder.getLastModified(), folder.getMimeType(), folder.getMd5Checksum(), folder.getId()});
+            queries.add("delete from " + TABLE_CRAWL_FRONTIER + " where folderId=?");
+            args.add(new Object[]{folder.getId()});
+        }
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public void failCrawl(List<String> folderIds, long backoff, long maxBackoff) {
+        final long now = System.currentTimeMillis();
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (String folderId : folderIds) {
+            List<Integer> retries = jdbcTemplate.queryForList("select retries from " + TABLE_CRAWL_FRONTIER
+                    + " where folderId=?", new Object[]{folderId}, Integer.class);
+            long delay = retries.isEmpty() ? backoff : backoff << Math.min(retries.get(0), 30);
+            queries.add("update " + TABLE_CRAWL_FRONTIER + " set retries=retries+1,nextAttempt=? where folderId=?");
+            args.add(new Object[]{now + Math.min(maxBackoff, delay), folderId});
+        }
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public void removeFromCrawlFrontier(List<String> folderIds) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (String folderId : folderIds) {
+            queries.add("delete from " + TABLE_CRAWL_FRONTIER + " where folderId=?");
+            args.add(new Object[]{folderId});
+        }
+        executeInTransaction(queries, args);
+    }
+
     /*
      * (non-Javadoc)
      *
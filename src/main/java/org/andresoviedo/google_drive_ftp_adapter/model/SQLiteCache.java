@@ -6,15 +6,17 @@ import org.apache.commons.logging.LogFactory;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.*;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
 
 /**
+ * The database is in WAL mode, so reading doesn't block writing and vice versa. All the writes are done by a dedicated
+ * thread with its own connection, which commits the writes of concurrent callers together (see {@link SQLiteWriter}),
+ * and the reads are done by a pool of read-only connections without any locking.
+ *
  * @author Andres Oviedo
  */
 public final class SQLiteCache implements Cache {
@@ -27,22 +29,60 @@ public final class SQLiteCache implements Cache {
 
     private static final String TABLE_PARAMETERS = "parameters";
 
+    private static final String TABLE_CRAWL_FRONTIER = "crawl_frontier";
+
+    /**
+     * Schema migrations. The version of the database is the number of migrations applied. Never change a released
+     * migration, add a new one instead
+     */
+    private static final List<List<String>> MIGRATIONS = Arrays.asList(
+            // 1: initial schema
+            Arrays.asList(
+                    "create table if not exists " + TABLE_FILES + " (id text, revision text, "
+                            + "filename text not null, isDirectory boolean, size integer, lastModified integer, mimeType text, "
+                            + "md5Checksum text, primary key (id))",
+                    "create table if not exists " + TABLE_CHILDS + " (id integer primary key, childId text references " + TABLE_FILES
+                            + "(id), parentId text references " + TABLE_FILES + "(id), unique (childId, parentId))",
+                    "create table if not exists " + TABLE_PARAMETERS + " (id text, value text, primary key (id))",
+                    "create index if not exists idx_filename on " + TABLE_FILES + " (filename)"),
+            // 2: persisted crawl frontier
+            Collections.singletonList(
+                    "create table if not exists " + TABLE_CRAWL_FRONTIER + " (folderId text, groupId text, pageToken text, "
+                            + "retries integer not null default 0, primary key (folderId))"),
+            // 3: list the children of a folder with the index only (the unique index already covers the lookups by child)
+            Arrays.asList(
+                    "create index if not exists idx_childs_parent on " + TABLE_CHILDS + " (parentId, childId)",
+                    "analyze"),
+            // 4: failed folders are retried with backoff
+            Collections.singletonList(
+                    "alter table " + TABLE_CRAWL_FRONTIER + " add column nextAttempt integer not null default 0"));
+
     private final RowMapper<GFile> rowMapper;
 
     private final RowMapper<String> parentIdMapper = (rs, rowNum) -> rs.getString("parentId");
 
+    private final RowMapper<CrawlFrontierEntry> crawlFrontierMapper = (rs, rowNum) -> new CrawlFrontierEntry(
+            rs.getString("folderId"), rs.getString("groupId"), rs.getString("pageToken"), rs.getInt("retries"));
+
     private final JdbcTemplate jdbcTemplate;
 
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock r = rwl.readLock();
-    private final Lock w = rwl.writeLock();
+    /**
+     * Thread doing all the writes, committing concurrent writes together
+     */
+    private final SQLiteWriter writer;
 
     public SQLiteCache(Properties configuration) {
+        this(new File("data/cache", configuration.getProperty("account", "default") + ".db"), configuration);
+    }
+
+    /**
+     * @param dataFile      the database file. It's created if it doesn't exist, and migrated to the last version
+     * @param configuration the configuration
+     */
+    SQLiteCache(File dataFile, Properties configuration) {
 
         // initialize the data store factory
-        String account = configuration.getProperty("account", "default");
-        final String pathname = "data/cache";
-        File dataDir = new File(pathname);
+        File dataDir = dataFile.getParentFile();
         if (!dataDir.exists()) {
             LOG.info("Creating cache '" + dataDir + "'...");
             if (!dataDir.mkdirs()) {
@@ -50,13 +90,29 @@ public final class SQLiteCache implements Cache {
             }
         }
 
-        String dataFile = pathname + "/" + account + ".db";
         LOG.info("Loading database '" + dataFile + "'...");
 
+        final String url = "jdbc:sqlite:file:" + dataFile.getPath();
+
+        // the writer creates the database (if it doesn't exist) and enables the WAL mode, which is persistent
+        SQLiteConfig writeConfig = new SQLiteConfig();
+        writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // in WAL mode the database can't get corrupted with NORMAL, we could just lose the last transactions
+        writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        writer = new SQLiteWriter(url, writeConfig,
+                Long.parseLong(configuration.getProperty("cache.sqlite.groupCommitMillis", "2")),
+                Integer.parseInt(configuration.getProperty("cache.sqlite.groupCommitMaxOperations", "1000")));
+
+        SQLiteConfig readConfig = new SQLiteConfig();
+        readConfig.setReadOnly(true);
         BasicDataSource dataSource = new BasicDataSource();
         dataSource.setDriverClassName("org.sqlite.JDBC");
-        dataSource.setUrl("jdbc:sqlite:file:" + dataFile);
-        // dataSource.setMaxActive(1);
+        dataSource.setUrl(url);
+        for (String property : readConfig.toProperties().stringPropertyNames()) {
+            dataSource.addConnectionProperty(property, readConfig.toProperties().getProperty(property));
+        }
+        dataSource.setMaxActive(Integer.parseInt(configuration.getProperty("cache.sqlite.readConnections", "8")));
+        dataSource.setMaxIdle(dataSource.getMaxActive());
         dataSource.setMaxWait(60000);
 
         jdbcTemplate = new JdbcTemplate(dataSource);
@@ -75,22 +131,22 @@ public final class SQLiteCache implements Cache {
             return ret;
         };
 
-        Integer ret = jdbcTemplate.queryForObject("SELECT count(*) FROM sqlite_master WHERE type='table' AND name='" + TABLE_FILES + "';",
-                Integer.class);
-        if (ret == 0) {
-            List<String> queries = new ArrayList<>();
-            queries.add("create table " + TABLE_FILES + " (id text, revision text, "
-                    + "filename text not null, isDirectory boolean, size integer, lastModified integer, mimeType text, "
-                    + "md5Checksum text, primary key (id))");
-            queries.add("create table " + TABLE_CHILDS + " (id integer primary key, childId text references " + TABLE_FILES
-                    + "(id), parentId text references " + TABLE_FILES + "(id), unique (childId, parentId))");
-            queries.add("create table " + TABLE_PARAMETERS + " (id text, value text, primary key (id))");
-            queries.add("create index idx_filename on " + TABLE_FILES + " (filename)");
-            jdbcTemplate.batchUpdate(queries.toArray(new String[0]));
-
-            LOG.info("Database created");
-        } else {
-            LOG.info("Database found");
+        migrate();
+    }
+
+    /**
+     * Apply the migrations newer than the version of the database (<code>user_version</code>), every one of them in
+     * its own transaction together with the new version. Databases created before the migrations existed are at
+     * version 0, that's why the first migrations don't fail if the tables exist.
+     */
+    private void migrate() {
+        int version = jdbcTemplate.queryForObject("pragma user_version", Integer.class);
+        LOG.info("Database version: " + version + ". Last version: " + MIGRATIONS.size());
+        for (int i = version; i < MIGRATIONS.size(); i++) {
+            LOG.info("Migrating database to version " + (i + 1) + "...");
+            List<String> queries = new ArrayList<>(MIGRATIONS.get(i));
+            queries.add("pragma user_version = " + (i + 1));
+            executeInTransaction(queries, null);
         }
     }
 
@@ -101,28 +157,32 @@ public final class SQLiteCache implements Cache {
      */
     @Override
     public GFile getFile(String id) {
-        r.lock();
         try {
             LOG.trace("getFile(" + id + ")");
             return jdbcTemplate.queryForObject("select * from " + TABLE_FILES + " where id=?", new Object[]{id},
                     rowMapper);
         } catch (EmptyResultDataAccessException ex) {
             return null;
-        } finally {
-            r.unlock();
         }
     }
 
     public int addOrUpdateFile(GFile file) {
+        return addOrUpdateFiles(Collections.singletonList(file));
+    }
+
+    @Override
+    public int addOrUpdateFiles(List<GFile> files) {
         List<String> queries = new ArrayList<>();
         List<Object[]> args = new ArrayList<>();
 
-        queries.add("insert or replace into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
-                + " values(?,?,?,?,?,?,?,?)");
-        args.add(new Object[]{file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
-                file.getLastModified(), file.getMimeType(), file.getMd5Checksum()});
+        for (GFile file : files) {
+            queries.add("insert or replace into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                    + " values(?,?,?,?,?,?,?,?)");
+            args.add(new Object[]{file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getSize(),
+                    file.getLastModified(), file.getMimeType(), file.getMd5Checksum()});
 
-        updateParents(file, queries, args);
+            updateParents(file, queries, args);
+        }
 
         return executeInTransaction(queries, args);
     }
@@ -151,7 +211,8 @@ public final class SQLiteCache implements Cache {
                     child.getLastModified(), child.getMimeType(), child.getMd5Checksum()});
 
             for (String parent : child.getParents()) {
-                queries.add("insert into " + TABLE_CHILDS + " (childId,parentId) values(?,?)");
+                // the link could already exist if the child has several parents
+                queries.add("insert or ignore into " + TABLE_CHILDS + " (childId,parentId) values(?,?)");
                 args.add(new Object[]{child.getId(), parent});
             }
         }
@@ -175,61 +236,252 @@ public final class SQLiteCache implements Cache {
         }
     }
 
+    @Override
+    public void applyChanges(List<GChange> changes, String revision) {
+        int updated = executeBatchesInTransaction(changesBatches(changes, revision));
+        LOG.debug("Changes applied: " + changes.size() + ". Records updated: " + updated);
+    }
+
+    @Override
+    public CompletableFuture<Void> applyChangesAsync(List<GChange> changes, String revision) {
+        return submitBatchesInTransaction(changesBatches(changes, revision)).thenAccept(updated ->
+                LOG.debug("Changes applied: " + changes.size() + ". Records updated: " + updated));
+    }
+
+    /**
+     * @return statements to apply the changes, executed in iteration order, and the arguments of every execution
+     */
+    private Map<String, List<Object[]>> changesBatches(List<GChange> changes, String revision) {
+        if (revision == null) {
+            throw new IllegalArgumentException("revision can't be null");
+        }
+        // statements are executed in this order, every one of them in a jdbc batch
+        final String deleteFile = "delete from " + TABLE_FILES + " where id=?";
+        final String deleteChilds = "delete from " + TABLE_CHILDS + " where parentId=?";
+        // new folders don't get the revision so they are synchronized afterwards
+        final String upsertFile = "insert or replace into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                + " values(?,case when ?=0 or exists (select 1 from " + TABLE_FILES + " where id=?) then ? end,?,?,?,?,?,?)";
+        final String deleteParents = "delete from " + TABLE_CHILDS + " where childId=?";
+        final String insertParent = "insert or ignore into " + TABLE_CHILDS + " (childId,parentId) values(?,?)";
+        final String updateRevision = "insert or replace into " + TABLE_PARAMETERS + " (id,value) values('revision',?)";
+
+        final Map<String, List<Object[]>> batches = new LinkedHashMap<>();
+        for (String query : new String[]{deleteFile, deleteChilds, upsertFile, deleteParents, insertParent, updateRevision}) {
+            batches.put(query, new ArrayList<>());
+        }
+        for (GChange change : GChange.collapse(changes)) {
+            if (change.isDeletion()) {
+                batches.get(deleteFile).add(new Object[]{change.getFileId()});
+                batches.get(deleteChilds).add(new Object[]{change.getFileId()});
+                continue;
+            }
+            GFile file = change.getFile();
+            batches.get(upsertFile).add(new Object[]{file.getId(), file.isDirectory(), file.getId(), change.getRevision(),
+                    file.getName(), file.isDirectory(), file.getSize(), file.getLastModified(), file.getMimeType(),
+                    file.getMd5Checksum()});
+            batches.get(deleteParents).add(new Object[]{file.getId()});
+            for (String parent : file.getParents()) {
+                batches.get(insertParent).add(new Object[]{file.getId(), parent});
+            }
+        }
+        batches.get(updateRevision).add(new Object[]{revision});
+        return batches;
+    }
+
+    /**
+     * Execute every query with all its arguments in a jdbc batch, all of them in the same transaction
+     *
+     * @param batches queries to execute (in iteration order) and the arguments of every execution
+     * @return number of affected records
+     */
+    private int executeBatchesInTransaction(final Map<String, List<Object[]>> batches) {
+        return writer.execute(toMutation(batches));
+    }
+
+    /**
+     * Like {@link #executeBatchesInTransaction(Map)}, but without waiting for the transaction
+     *
+     * @param batches queries to execute (in iteration order) and the arguments of every execution
+     * @return future completed with the number of affected records when the transaction is committed
+     */
+    private CompletableFuture<Integer> submitBatchesInTransaction(final Map<String, List<Object[]>> batches) {
+        return writer.submit(toMutation(batches));
+    }
+
+    private static List<SQLiteWriter.Batch> toMutation(Map<String, List<Object[]>> batches) {
+        List<SQLiteWriter.Batch> mutation = new ArrayList<>(batches.size());
+        for (Map.Entry<String, List<Object[]>> batch : batches.entrySet()) {
+            if (!batch.getValue().isEmpty()) {
+                mutation.add(new SQLiteWriter.Batch(batch.getKey(), batch.getValue()));
+            }
+        }
+        return mutation;
+    }
+
+    /**
+     * Execute the queries in the same transaction. Consecutive executions of the same query are sent in a jdbc batch
+     *
+     * @param queries queries to execute
+     * @param args    arguments of every query or <code>null</code> if they don't have arguments
+     * @return number of affected records
+     */
     private int executeInTransaction(final List<String> queries, final List<Object[]> args) {
-        return jdbcTemplate.execute((ConnectionCallback<Integer>) connection -> {
-            w.lock();
-            try {
-                connection.setAutoCommit(false);
-                int ret = 0;
-                for (int i = 0; i < queries.size(); i++) {
-                    if (args == null || args.get(i) == null) {
-                        ret += connection.createStatement().executeUpdate(queries.get(i));
-                    } else {
-                        PreparedStatement ps = connection.prepareStatement(queries.get(i));
-                        PreparedStatementSetter psSetter = new ArgumentPreparedStatementSetter(args.get(i));
-                        psSetter.setValues(ps);
-                        ret += ps.executeUpdate();
-                    }
-                }
-                connection.commit();
-                return ret;
-            } catch (Exception ex) {
-                LOG.error("Error executing transaction. " + ex.getMessage());
-                /*for (int i = 0; i < queries.size(); i++) {
-                    LOG.error("Query '" + queries.get(i) + "' " + (args != null && i < args.size() ? " args:" + Arrays.toString(args.get(i)) : "") + "' ");
-                }*/
-                throw new RuntimeException(ex);
-            } finally {
-                try {
-                    connection.setAutoCommit(true);
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-                w.unlock();
+        List<SQLiteWriter.Batch> mutation = new ArrayList<>(queries.size());
+        SQLiteWriter.Batch last = null;
+        for (int i = 0; i < queries.size(); i++) {
+            if (args == null || args.get(i) == null) {
+                last = null;
+                mutation.add(new SQLiteWriter.Batch(queries.get(i), null));
+            } else if (last != null && last.getSql().equals(queries.get(i))) {
+                last.getArgs().add(args.get(i));
+            } else {
+                last = new SQLiteWriter.Batch(queries.get(i), new ArrayList<>(Collections.singletonList(args.get(i))));
+                mutation.add(last);
             }
-        });
+        }
+        return writer.execute(mutation);
     }
 
     @Override
     public List<GFile> getFiles(String parentId) {
-        System.out.println();
-        r.lock();
-        try {
-            return jdbcTemplate.query("select " + TABLE_FILES + ".* from " + TABLE_FILES + "," + TABLE_CHILDS
-                            + " where " + TABLE_CHILDS + ".childId=" + TABLE_FILES + ".id and " + TABLE_CHILDS + ".parentId=?",
-                    new Object[]{parentId}, rowMapper);
-        } finally {
-            r.unlock();
-        }
+        return jdbcTemplate.query("select " + TABLE_FILES + ".* from " + TABLE_FILES + "," + TABLE_CHILDS
+                        + " where " + TABLE_CHILDS + ".childId=" + TABLE_FILES + ".id and " + TABLE_CHILDS + ".parentId=?",
+                new Object[]{parentId}, rowMapper);
     }
 
     public List<String> getAllFoldersWithoutRevision() {
-        r.lock();
-        try {
-            return jdbcTemplate.queryForList("select id from " + TABLE_FILES + " where isDirectory=1 and revision is null", String.class);
-        } finally {
-            r.unlock();
+        return jdbcTemplate.queryForList("select id from " + TABLE_FILES + " where isDirectory=1 and revision is null", String.class);
+    }
+
+    @Override
+    public void evictFolder(String folderId) {
+        List<String> queries = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        queries.add("delete from " + TABLE_FILES + " where id in (select childId from " + TABLE_CHILDS + " where parentId=?)"
+                + " and id not in (select childId from " + TABLE_CHILDS + " where parentId<>?)");
+        args.add(new Object[]{folderId, folderId});
+        queries.add("delete from " + TABLE_CHILDS + " where parentId=?");
+        args.add(new Object[]{folderId});
+        queries.add("update " + TABLE_FILES + " set revision=null where id=?");
+        args.add(new Object[]{folderId});
+        executeInTransaction(queries, args);
+    }
+
+    @Override
+    public void addToCrawlFrontier(List<String> folderIds) {
+        final String insertFolder = "insert or ignore into " + TABLE_CRAWL_FRONTIER + " (folderId) values(?)";
+        final List<Object[]> args = new ArrayList<>(folderIds.size());
+        for (String folderId : folderIds) {
+            args.add(new Object[]{folderId});
+        }
+        executeBatchesInTransaction(Collections.singletonMap(insertFolder, args));
+    }
+
+    @Override
+    public List<CrawlFrontierEntry> getCrawlFrontier(int max) {
+        return getCrawlFrontier(max, System.currentTimeMillis());
+    }
+
+    List<CrawlFrontierEntry> getCrawlFrontier(int max, long now) {
+        // groups whose listing was interrupted go whole (there are a few, the ones being listed when it stopped)
+        final List<CrawlFrontierEntry> ret = new ArrayList<>(CrawlFrontierEntry.wholeGroups(jdbcTemplate.query(
+                "select * from " + TABLE_CRAWL_FRONTIER + " where nextAttempt<=? and pageToken is not null"
+                        + " order by groupId, folderId", new Object[]{now}, crawlFrontierMapper), max));
+        if (ret.size() < max) {
+            ret.addAll(jdbcTemplate.query("select * from " + TABLE_CRAWL_FRONTIER
+                            + " where nextAttempt<=? and pageToken is null order by folderId limit ?",
+                    new Object[]{now, max - ret.size()}, crawlFrontierMapper));
+        }
+        return ret;
+    }
+
+    @Override
+    public void saveCrawlPage(String groupId, List<String> folderIds, List<GFile> childs, String nextPageToken) {
+        executeBatchesInTransaction(crawlPageBatches(groupId, folderIds, childs, nextPageToken));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveCrawlPageAsync(String groupId, List<String> folderIds, List<GFile> childs,
+                                                      String nextPageToken) {
+        return submitBatchesInTransaction(crawlPageBatches(groupId, folderIds, childs, nextPageToken)).thenApply(updated -> null);
+    }
+
+    /**
+     * @return statements to save the page, executed in iteration order, and the arguments of every execution
+     */
+    private Map<String, List<Object[]>> crawlPageBatches(String groupId, List<String> folderIds, List<GFile> childs,
+                                                         String nextPageToken) {
+        // statements are executed in this order, every one of them in a jdbc batch
+        // subfolders already synchronized keep their revision
+        final String upsertChild = "insert or replace into " + TABLE_FILES + " (id,revision,filename,isDirectory,size,lastModified,mimeType,md5checksum)"
+                + " values(?,case when ?=0 then ? else (select revision from " + TABLE_FILES + " where id=?) end,?,?,?,?,?,?)";
+        final String insertParent = "insert or ignore into " + TABLE_CHILDS + " (childId,parentId) values(?,?)";
+        final String addSubfolder = "insert or ignore into " + TABLE_CRAWL_FRONTIER + " (folderId) select id from " + TABLE_FILES
+                + " where id=? and isDirectory=1 and revision is null";
+        // the listing is going on, so previous failures don't count
+        final String updateGroup = "update " + TABLE_CRAWL_FRONTIER + " set groupId=?,pageToken=?,retries=0,nextAttempt=0"
+                + " where folderId=?";
+
+        final Map<String, List<Object[]>> batches = new LinkedHashMap<>();
+        for (String query : new String[]{upsertChild, insertParent, addSubfolder, updateGroup}) {
+            batches.put(query, new ArrayList<>());
+        }
+        for (GFile child : childs) {
+            batches.get(upsertChild).add(new Object[]{child.getId(), child.isDirectory(), child.getRevision(), child.getId(),
+                    child.getName(), child.isDirectory(), child.getSize(), child.getLastModified(), child.getMimeType(),
+                    child.getMd5Checksum()});
+            for (String parent : child.getParents()) {
+                batches.get(insertParent).add(new Object[]{child.getId(), parent});
+            }
+            if (child.isDirectory()) {
+                batches.get(addSubfolder).add(new Object[]{child.getId()});
+            }
+        }
+        for (String folderId : folderIds) {
+            batches.get(updateGroup).add(new Object[]{groupId, nextPageToken, folderId});
+        }
+        return batches;
+    }
+
+    @Override
+    public void completeCrawl(List<GFile> folders) {
+        final String updateFolder = "update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,size=?,lastModified=?,mimeType=?,md5checksum=? where id=?";
+        final String removeFolder = "delete from " + TABLE_CRAWL_FRONTIER + " where folderId=?";
+        final Map<String, List<Object[]>> batches = new LinkedHashMap<>();
+        batches.put(updateFolder, new ArrayList<>());
+        batches.put(removeFolder, new ArrayList<>());
+        for (GFile folder : folders) {
+            batches.get(updateFolder).add(new Object[]{folder.getRevision(), folder.getName(), folder.isDirectory(),
+                    folder.getSize(), folder.getLastModified(), folder.getMimeType(), folder.getMd5Checksum(), folder.getId()});
+            batches.get(removeFolder).add(new Object[]{folder.getId()});
+        }
+        executeBatchesInTransaction(batches);
+    }
+
+    @Override
+    public void failCrawl(List<String> folderIds, long backoff, long maxBackoff) {
+        failCrawl(folderIds, backoff, maxBackoff, System.currentTimeMillis());
+    }
+
+    void failCrawl(List<String> folderIds, long backoff, long maxBackoff, long now) {
+        // the backoff of the previous failure is doubled (it's the old value of retries)
+        final String countRetry = "update " + TABLE_CRAWL_FRONTIER + " set retries=retries+1,"
+                + "nextAttempt=?+min(?,?<<min(retries,30)) where folderId=?";
+        final List<Object[]> args = new ArrayList<>(folderIds.size());
+        for (String folderId : folderIds) {
+            args.add(new Object[]{now, maxBackoff, backoff, folderId});
+        }
+        executeBatchesInTransaction(Collections.singletonMap(countRetry, args));
+    }
+
+    @Override
+    public void removeFromCrawlFrontier(List<String> folderIds) {
+        final String removeFolder = "delete from " + TABLE_CRAWL_FRONTIER + " where folderId=?";
+        final List<Object[]> args = new ArrayList<>(folderIds.size());
+        for (String folderId : folderIds) {
+            args.add(new Object[]{folderId});
         }
+        executeBatchesInTransaction(Collections.singletonMap(removeFolder, args));
     }
 
     /*
@@ -239,15 +491,12 @@ public final class SQLiteCache implements Cache {
      */
     @Override
     public GFile getFileByName(String parentId, String filename) throws IncorrectResultSizeDataAccessException {
-        r.lock();
         try {
             return jdbcTemplate.queryForObject("select " + TABLE_FILES + ".* from " + TABLE_CHILDS + ","
                     + TABLE_FILES + " where " + TABLE_CHILDS + ".childId=" + TABLE_FILES + ".id and " + TABLE_CHILDS + ".parentId=? and "
                     + TABLE_FILES + ".filename=?", new Object[]{parentId, filename}, rowMapper);
         } catch (EmptyResultDataAccessException ex) {
             return null;
-        } finally {
-            r.unlock();
         }
     }
 
@@ -268,13 +517,10 @@ public final class SQLiteCache implements Cache {
     }
 
     public String getRevision() {
-        r.lock();
         try {
             return jdbcTemplate.queryForObject("select value from " + TABLE_PARAMETERS + " where id='revision'", String.class);
         } catch (EmptyResultDataAccessException ex) {
             return null;
-        } finally {
-            r.unlock();
         }
     }
 
@@ -282,19 +528,16 @@ public final class SQLiteCache implements Cache {
         if (revision == null) {
             throw new IllegalArgumentException("revision can't be null");
         }
-        executeInTransaction(Collections.singletonList("insert or replace into " + TABLE_PARAMETERS + " (id,value) values('revision','" + revision + "')"),
-                null);
+        executeInTransaction(Collections.singletonList("insert or replace into " + TABLE_PARAMETERS + " (id,value) values('revision',?)"),
+                Collections.singletonList(new Object[]{revision}));
     }
 
     public Set<String> getParents(String fileId) {
-        r.lock();
         try {
             return new HashSet<>(jdbcTemplate.query("select parentId from " + TABLE_CHILDS
                     + " where childId=?", new Object[]{fileId}, parentIdMapper));
         } catch (EmptyResultDataAccessException ex) {
             return null;
-        } finally {
-            r.unlock();
         }
     }
 }
@@ -0,0 +1,292 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes to the SQLite database with a single connection owned by a dedicated thread. Mutations are queued and the
+ * ones queued meanwhile (up to some milliseconds or number of operations) are committed in the same transaction, so
+ * concurrent writers share the cost of the commit (group commit). Every mutation runs in its own savepoint, so a failing
+ * mutation doesn't fail the others in the same transaction.
+ * <p>
+ * Prepared statements are cached, and the executions of the same statement are sent in a jdbc batch.
+ *
+ * @author andresoviedo
+ */
+final class SQLiteWriter {
+
+    private static final Log logger = LogFactory.getLog(SQLiteWriter.class);
+
+    /**
+     * Max number of prepared statements cached. Statements are built from constants, so this is just a safeguard
+     */
+    private static final int MAX_STATEMENTS = 100;
+
+    private final BlockingQueue<Mutation> queue = new LinkedBlockingQueue<>();
+
+    private final long groupCommitNanos;
+
+    private final int maxOperations;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private final AtomicLong transactions = new AtomicLong();
+
+    private final AtomicLong mutations = new AtomicLong();
+
+    /**
+     * @param url               the database url
+     * @param config            configuration of the connection
+     * @param groupCommitMillis max millis to wait for other mutations before committing
+     * @param maxOperations     max number of statement executions committed in the same transaction
+     */
+    SQLiteWriter(String url, SQLiteConfig config, long groupCommitMillis, int maxOperations) {
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.maxOperations = maxOperations;
+
+        final CompletableFuture<Connection> connection = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                Connection writeConnection = config.createConnection(url);
+                writeConnection.setAutoCommit(false);
+                connection.complete(writeConnection);
+            } catch (SQLException | RuntimeException e) {
+                connection.completeExceptionally(e);
+                return;
+            }
+            run(connection.join());
+        }, "sqlite-writer");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            connection.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error opening database '" + url + "'", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while opening database '" + url + "'", e);
+        }
+    }
+
+    /**
+     * Queue the mutation
+     *
+     * @param batches statements of the mutation, executed in order
+     * @return future completed with the number of affected records when the mutation is committed
+     */
+    CompletableFuture<Integer> submit(List<Batch> batches) {
+        Mutation mutation = new Mutation(batches);
+        queue.add(mutation);
+        return mutation.future;
+    }
+
+    /**
+     * Execute the mutation, waiting for it to be committed
+     *
+     * @param batches statements of the mutation, executed in order
+     * @return number of affected records
+     */
+    int execute(List<Batch> batches) {
+        try {
+            return submit(batches).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing", e);
+        }
+    }
+
+    /**
+     * @return number of transactions committed
+     */
+    long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * @return number of mutations committed
+     */
+    long getMutations() {
+        return mutations.get();
+    }
+
+    private void run(Connection connection) {
+        final List<Mutation> group = new ArrayList<>();
+        while (true) {
+            try {
+                Mutation first = queue.take();
+                group.add(first);
+                int operations = first.operations;
+                final long deadline = System.nanoTime() + groupCommitNanos;
+                while (operations < maxOperations) {
+                    Mutation next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    operations += next.operations;
+                }
+                commit(connection, group);
+            } catch (InterruptedException e) {
+                logger.warn("SQLite writer interrupted");
+                for (Mutation mutation : group) {
+                    mutation.future.completeExceptionally(e);
+                }
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(Connection connection, List<Mutation> group) {
+        final int[] results = new int[group.size()];
+        try {
+            for (int i = 0; i < group.size(); i++) {
+                Mutation mutation = group.get(i);
+                if (group.size() == 1) {
+                    results[i] = apply(connection, mutation);
+                    continue;
+                }
+                executeUpdate(connection, "savepoint mutation");
+                try {
+                    results[i] = apply(connection, mutation);
+                    executeUpdate(connection, "release mutation");
+                } catch (SQLException | RuntimeException e) {
+                    logger.error("Error executing transaction. " + e.getMessage());
+                    executeUpdate(connection, "rollback to mutation");
+                    executeUpdate(connection, "release mutation");
+                    mutation.future.completeExceptionally(e);
+                }
+            }
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error executing transaction. " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                logger.error("Error rolling back transaction. " + ex.getMessage());
+            }
+            for (Mutation mutation : group) {
+                mutation.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        transactions.incrementAndGet();
+        mutations.addAndGet(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).future.complete(results[i]);
+        }
+    }
+
+    private int apply(Connection connection, Mutation mutation) throws SQLException {
+        int ret = 0;
+        for (Batch batch : mutation.batches) {
+            if (batch.args == null) {
+                ret += executeUpdate(connection, batch.sql);
+                continue;
+            }
+            PreparedStatement ps = prepare(connection, batch.sql);
+            try {
+                if (batch.args.size() == 1) {
+                    new ArgumentPreparedStatementSetter(batch.args.get(0)).setValues(ps);
+                    ret += ps.executeUpdate();
+                    continue;
+                }
+                for (Object[] args : batch.args) {
+                    new ArgumentPreparedStatementSetter(args).setValues(ps);
+                    ps.addBatch();
+                }
+                for (int count : ps.executeBatch()) {
+                    ret += Math.max(count, 0);
+                }
+            } catch (SQLException | RuntimeException e) {
+                // the driver doesn't reset the statement when it fails, so it can't be reused
+                statements.remove(batch.sql);
+                ps.close();
+                throw e;
+            }
+        }
+        return ret;
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            if (statements.size() >= MAX_STATEMENTS) {
+                for (PreparedStatement statement : statements.values()) {
+                    statement.close();
+                }
+                statements.clear();
+            }
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    private static int executeUpdate(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            return statement.executeUpdate(sql);
+        }
+    }
+
+    /**
+     * A statement and the arguments of every execution
+     */
+    static final class Batch {
+
+        private final String sql;
+
+        /**
+         * Arguments of every execution or <code>null</code> to execute the statement once without arguments
+         */
+        private final List<Object[]> args;
+
+        Batch(String sql, List<Object[]> args) {
+            this.sql = sql;
+            this.args = args;
+        }
+
+        String getSql() {
+            return sql;
+        }
+
+        List<Object[]> getArgs() {
+            return args;
+        }
+    }
+
+    private static final class Mutation {
+
+        private final List<Batch> batches;
+
+        private final int operations;
+
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private Mutation(List<Batch> batches) {
+            this.batches = batches;
+            int count = 0;
+            for (Batch batch : batches) {
+                count += batch.args == null ? 1 : batch.args.size();
+            }
+            this.operations = count;
+        }
+    }
+}
@@ -2,20 +2,30 @@ package org.andresoviedo.google_drive_ftp_adapter.service;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import org.andresoviedo.google_drive_ftp_adapter.model.Cache;
+import org.andresoviedo.google_drive_ftp_adapter.model.CrawlFrontierEntry;
 import org.andresoviedo.google_drive_ftp_adapter.model.GChange;
 import org.andresoviedo.google_drive_ftp_adapter.model.GFile;
 import org.andresoviedo.google_drive_ftp_adapter.model.GoogleDrive;
+import org.andresoviedo.google_drive_ftp_adapter.model.QuotaGovernor;
+import org.andresoviedo.google_drive_ftp_adapter.model.RequestPriority;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Cache synchronization service (by polling).
+ * <p>
+ * The polling is adaptive: the interval is the minimum while there are remote changes or ftp clients are active, and
+ * it doubles on every idle poll up to the maximum. Client activity also triggers a poll as soon as the minimum interval
+ * has elapsed since the last one.
+ * <p>
+ * In lazy mode folders are not crawled: they are synchronized the first time a ftp client needs them, only the
+ * changes of the files we already know are applied, and the folders not used for a while are evicted from the cache.
  *
  * @author Andres Oviedo
  */
@@ -23,19 +33,188 @@ public final class FtpGdriveSynchService {
 
     private static final Log LOG = LogFactory.getLog(FtpGdriveSynchService.class);
 
+    /**
+     * Max number of folders synchronized by every crawl task. Their metadata is retrieved with a single batch request
+     * and their children are listed with the same query
+     */
+    private static final int FOLDERS_PER_TASK = 25;
+
     private GoogleDrive googleDrive;
 
     private Cache cache;
 
-    private ExecutorService executor;
+    /**
+     * Pool of the crawl tasks. Tasks start new tasks for the subfolders they find. They spend most of the time blocked
+     * on the network and on the writes of the cache, so it's a plain pool instead of a fork join one
+     */
+    private final ExecutorService crawlExecutor;
+
+    /**
+     * Max number of crawl tasks running when the quota governor is at its max rate. There are less while it's throttled
+     */
+    private final int maxCrawlTasks;
+
+    /**
+     * Max number of folders waiting in the frontier. Other folders pending to crawl stay in the crawl frontier persisted
+     * in the cache and are added to the frontier when it gets empty
+     */
+    private final int maxPendingFolders;
+
+    /**
+     * Millis to wait before crawling again folders that failed. It doubles on every failure in a row
+     */
+    private final long crawlRetryBackoff;
+
+    private final long maxCrawlRetryBackoff;
+
+    /**
+     * Folders waiting to be crawled
+     */
+    private final Queue<String> frontier = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Groups of folders whose listing was interrupted (i.e. the process was restarted), waiting to be resumed
+     */
+    private final Queue<CrawlGroup> resumedGroups = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger frontierSize = new AtomicInteger();
+
+    /**
+     * Folders in the frontier or being crawled, so they are not added twice
+     */
+    private final Set<String> crawling = ConcurrentHashMap.newKeySet();
 
-    private Timer timer;
+    private final AtomicInteger crawlTasks = new AtomicInteger();
 
-    public FtpGdriveSynchService(Cache cache, GoogleDrive googleDrive) {
+    /**
+     * Folders crawled since the frontier was refilled from the cache
+     */
+    private final AtomicLong crawledSinceRefill = new AtomicLong();
+
+    /**
+     * Refills of the frontier are done by the poller and by the crawl tasks, so they are done one at a time
+     */
+    private final Object refillLock = new Object();
+
+    /**
+     * The crawl frontier has to be seeded with all the folders without revision the next time it's empty. Folders
+     * that failed too many times stay in the crawl frontier without being returned, so it's not seeded on every refill
+     */
+    private volatile boolean seedFrontier = true;
+
+    private final AtomicLong foldersCrawled = new AtomicLong();
+
+    /**
+     * Synchronizes the folders the ftp clients are browsing, without waiting for the crawl
+     */
+    private final ExecutorService prioritizedExecutor;
+
+    /**
+     * Folders being synchronized by a prioritized task or a crawl task, so the same folder is not listed twice at the
+     * same time
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> synchronizing = new ConcurrentHashMap<>();
+
+    /**
+     * Max millis the ftp clients wait for a prioritized folder to be synchronized
+     */
+    private final long prioritizedWait;
+
+    private final ScheduledExecutorService poller;
+
+    private final Runnable syncTask;
+
+    /**
+     * If <code>true</code>, an empty cache is filled listing the whole drive instead of folder by folder
+     */
+    private final boolean flatBootstrap;
+
+    /**
+     * If <code>true</code>, folders are synchronized only when the ftp clients use them
+     */
+    private final boolean lazy;
+
+    /**
+     * In lazy mode, millis a folder can go unused before its children are evicted from the cache
+     */
+    private final long evictAfter;
+
+    /**
+     * In lazy mode, last time every synchronized folder was used. Using a folder uses its ancestors too
+     */
+    private final ConcurrentMap<String, Long> folderAccess = new ConcurrentHashMap<>();
+
+    private final long minPollInterval;
+
+    private final long maxPollInterval;
+
+    /**
+     * Clients are considered active during this millis after their last request
+     */
+    private final long activityWindow;
+
+    /**
+     * Number of remote changes applied so far
+     */
+    private final AtomicLong changesApplied = new AtomicLong();
+
+    private ScheduledFuture<?> nextPoll;
+
+    private long nextPollTime;
+
+    /**
+     * Incremented every time a poll is scheduled, so a cancelled poll that already started doesn't do anything
+     */
+    private long pollGeneration;
+
+    private boolean polling;
+
+    private boolean stopped;
+
+    private long pollInterval;
+
+    private long lastPollEnd;
+
+    /**
+     * Start time of the last successful poll: all remote changes before it are in the cache
+     */
+    private volatile long lastSuccessfulPoll;
+
+    private volatile long lastClientActivity;
+
+    public FtpGdriveSynchService(Cache cache, GoogleDrive googleDrive, Properties configuration) {
         this.googleDrive = googleDrive;
         this.cache = cache;
-        this.executor = Executors.newFixedThreadPool(4);
-        this.timer = new Timer(true);
+        this.lazy = "lazy".equals(configuration.getProperty("sync.mode", "full"));
+        this.flatBootstrap = !lazy && "flat".equals(configuration.getProperty("sync.bootstrap", "folders"));
+        this.evictAfter = TimeUnit.MINUTES.toMillis(Long.parseLong(configuration.getProperty("sync.lazy.evictAfterMinutes", "60")));
+        this.minPollInterval = TimeUnit.SECONDS.toMillis(Long.parseLong(configuration.getProperty("sync.poll.minSeconds", "5")));
+        this.maxPollInterval = TimeUnit.SECONDS.toMillis(Long.parseLong(configuration.getProperty("sync.poll.maxSeconds", "300")));
+        this.activityWindow = TimeUnit.SECONDS.toMillis(Long.parseLong(configuration.getProperty("sync.poll.activitySeconds", "60")));
+        this.pollInterval = minPollInterval;
+        final int parallelism = Integer.parseInt(configuration.getProperty("sync.crawl.parallelism", "4"));
+        this.maxCrawlTasks = parallelism;
+        this.maxPendingFolders = Integer.parseInt(configuration.getProperty("sync.crawl.maxPendingFolders", "10000"));
+        this.crawlRetryBackoff = TimeUnit.SECONDS.toMillis(Long.parseLong(configuration.getProperty("sync.crawl.retryBackoffSeconds", "30")));
+        this.maxCrawlRetryBackoff = TimeUnit.MINUTES.toMillis(Long.parseLong(configuration.getProperty("sync.crawl.maxRetryBackoffMinutes", "60")));
+        this.prioritizedWait = Long.parseLong(configuration.getProperty("sync.prioritized.waitMillis", "3000"));
+        this.prioritizedExecutor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "sync-prioritized");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger crawlThreads = new AtomicInteger();
+        this.crawlExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "sync-crawl-" + crawlThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sync-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncTask = createSyncChangesTask();
         init();
     }
 
@@ -48,13 +227,218 @@ public final class FtpGdriveSynchService {
             rootFile.setParents(Collections.emptySet());
             cache.addOrUpdateFile(rootFile);
         }
+        if (lazy) {
+            // folders synchronized before restarting will be evicted if they are not used
+            final long now = System.currentTimeMillis();
+            final Deque<GFile> folders = new ArrayDeque<>(Collections.singleton(rootFile));
+            GFile folder;
+            while ((folder = folders.poll()) != null) {
+                if (folder.getRevision() == null || folderAccess.putIfAbsent(folder.getId(), now) != null) {
+                    continue;
+                }
+                for (GFile child : cache.getFiles(folder.getId())) {
+                    if (child.isDirectory()) {
+                        folders.add(child);
+                    }
+                }
+            }
+            LOG.info("Lazy synchronization. Folders in cache: " + folderAccess.size());
+        }
     }
 
     /**
      * Start synchronization local database vs remote google drive
      */
     public void start() {
-        timer.schedule(createSyncChangesTask(), 0, 10000);
+        synchronized (this) {
+            schedulePoll(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Notify that an ftp client is active, so changes are polled now (or as soon as the minimum interval elapses)
+     * and the polling interval is kept to the minimum while the client is active
+     */
+    public synchronized void pollNow() {
+        final long now = System.currentTimeMillis();
+        lastClientActivity = now;
+        if (stopped || polling || nextPoll == null) {
+            // running poll will schedule the next one taking the activity into account
+            return;
+        }
+        final long time = Math.max(now, lastPollEnd + minPollInterval);
+        if (time < nextPollTime) {
+            schedulePoll(time);
+        }
+    }
+
+    /**
+     * Schedule the next poll, replacing the one already scheduled. It must be called holding the lock
+     *
+     * @param time when to poll
+     */
+    private void schedulePoll(long time) {
+        if (stopped) {
+            return;
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        final long generation = ++pollGeneration;
+        nextPollTime = time;
+        nextPoll = poller.schedule(() -> poll(generation), Math.max(0, time - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(long generation) {
+        synchronized (this) {
+            if (generation != pollGeneration || stopped) {
+                return;
+            }
+            polling = true;
+        }
+        final long start = System.currentTimeMillis();
+        final long changesBefore = changesApplied.get();
+        boolean failed = false;
+        try {
+            syncTask.run();
+            lastSuccessfulPoll = start;
+        } catch (Exception e) {
+            failed = true;
+            LOG.error(e.getMessage(), e);
+            if (e.getCause() instanceof GoogleJsonResponseException
+                    && ((GoogleJsonResponseException) e.getCause()).getStatusCode() == 401) {
+                LOG.error("Unauthorized. Stopping synchronization..." + e.getMessage(), e);
+                stop();
+            }
+        } finally {
+            synchronized (this) {
+                polling = false;
+                lastPollEnd = System.currentTimeMillis();
+                boolean active = changesApplied.get() > changesBefore || lastPollEnd - lastClientActivity < activityWindow;
+                pollInterval = active && !failed ? minPollInterval : Math.min(maxPollInterval, pollInterval * 2);
+                LOG.debug("Next poll in " + pollInterval + " millis");
+                schedulePoll(lastPollEnd + pollInterval);
+            }
+        }
+    }
+
+    /**
+     * @return millis between the last poll and the next one
+     */
+    public synchronized long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * @return millis since the last successful poll (remote changes done meanwhile may not be in the cache yet) or
+     * -1 if there hasn't been any successful poll yet
+     */
+    public long getLag() {
+        return lastSuccessfulPoll == 0 ? -1 : System.currentTimeMillis() - lastSuccessfulPoll;
+    }
+
+    /**
+     * @return number of remote changes applied to the cache
+     */
+    public long getChangesApplied() {
+        return changesApplied.get();
+    }
+
+    /**
+     * Synchronize the folders now if they were not synchronized yet, instead of waiting for the crawl to get to them.
+     * Folders are synchronized all at once (i.e. a folder and its ancestors).
+     *
+     * @param folderIds the folders
+     * @return future completed when all the folders are synchronized
+     */
+    public CompletableFuture<Void> prioritize(List<String> folderIds) {
+        if (lazy) {
+            final long now = System.currentTimeMillis();
+            for (String folderId : folderIds) {
+                folderAccess.put(folderId, now);
+            }
+        }
+        final List<String> pending = new ArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String folderId : folderIds) {
+            if (!isPending(folderId)) {
+                continue;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> existing = synchronizing.putIfAbsent(folderId, future);
+            if (existing != null) {
+                // already prioritized or being crawled
+                futures.add(existing);
+            } else {
+                futures.add(future);
+                pending.add(folderId);
+                unqueue(folderId);
+            }
+        }
+        if (futures.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        for (int i = 0; i < pending.size(); i += FOLDERS_PER_TASK) {
+            final List<String> taskFolderIds = pending.subList(i, Math.min(pending.size(), i + FOLDERS_PER_TASK));
+            LOG.info("Prioritizing folders " + taskFolderIds + "...");
+            prioritizedExecutor.execute(() -> RequestPriority.run(RequestPriority.INTERACTIVE, () -> {
+                try {
+                    List<String> subfolders = synchFolders(taskFolderIds, getRemoteFolders(taskFolderIds));
+                    if (!lazy) {
+                        // so the crawl gets to them after a restart
+                        cache.addToCrawlFrontier(subfolders);
+                        cache.removeFromCrawlFrontier(taskFolderIds);
+                    }
+                    for (String folderId : taskFolderIds) {
+                        synchronizing.remove(folderId).complete(null);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error synchronizing folders " + taskFolderIds + ": " + e.getMessage(), e);
+                    for (String folderId : taskFolderIds) {
+                        synchronizing.remove(folderId).completeExceptionally(e);
+                    }
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Remove the folder from the frontier, if it's waiting there, so the crawl doesn't list it again. Folders already
+     * taken by a crawl task are skipped by the task
+     *
+     * @param folderId the folder
+     */
+    private void unqueue(String folderId) {
+        if (frontier.remove(folderId)) {
+            frontierSize.decrementAndGet();
+            crawling.remove(folderId);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if folders are synchronized only when the ftp clients use them
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * @return max millis the ftp clients should wait for a prioritized folder
+     */
+    public long getPrioritizedWait() {
+        return prioritizedWait;
+    }
+
+    /**
+     * @param folderId the folder
+     * @return <code>true</code> if the folder is in the cache but it's not synchronized yet
+     */
+    private boolean isPending(String folderId) {
+        GFile folder = cache.getFile(folderId);
+        return folder != null && folder.isDirectory() && folder.getRevision() == null;
     }
 
     public void updateFolderNow(String fileId) {
@@ -63,34 +447,30 @@ public final class FtpGdriveSynchService {
 
     public void stop() {
         LOG.info("Stopping synch service...");
-        executor.shutdownNow();
-        timer.cancel();
+        synchronized (this) {
+            stopped = true;
+            if (nextPoll != null) {
+                nextPoll.cancel(false);
+            }
+        }
+        crawlExecutor.shutdownNow();
+        prioritizedExecutor.shutdownNow();
+        poller.shutdownNow();
     }
 
-    private TimerTask createSyncChangesTask() {
-        return new TimerTask() {
+    private Runnable createSyncChangesTask() {
+        return new Runnable() {
 
             @Override
             public void run() {
-                try {
-                    // check google drive changes
-                    checkForRemoteChanges();
+                // check google drive changes
+                RequestPriority.run(RequestPriority.CHANGES, this::checkForRemoteChanges);
 
+                if (lazy) {
+                    evictIdleFolders();
+                } else {
                     // sync pending folders
-                    syncPendingFolders();
-                } catch (Exception e) {
-                    LOG.error(e.getMessage(), e);
-                    try {
-                        if (e.getCause() instanceof GoogleJsonResponseException) {
-                            int code = ((GoogleJsonResponseException) e).getDetails().getCode();
-                            if (code == 401) {
-                                LOG.error("Unauthorized. Cancelling timer..." + e.getMessage(), e);
-                                timer.cancel();
-                            }
-                        }
-                    } catch (Exception e1) {
-                        LOG.error("Could not handle exception: " + e.getMessage(), e);
-                    }
+                    RequestPriority.run(RequestPriority.CRAWL, this::syncPendingFolders);
                 }
             }
 
@@ -100,102 +480,423 @@ public final class FtpGdriveSynchService {
                 LOG.debug("Local revision: " + revision);
                 if (revision == null) {
                     revision = googleDrive.getStartRevision();
+                    if (flatBootstrap) {
+                        // revision is taken before listing so we don't miss changes done meanwhile
+                        final String startRevision = revision;
+                        RequestPriority.run(RequestPriority.CRAWL, () -> bootstrap(startRevision));
+                    }
                     cache.updateRevision(revision);
                     LOG.debug("New revision: " + revision);
                 }
 
-                List<GChange> googleChanges;
-                while ((googleChanges = googleDrive.getAllChanges(revision)).size() > 0) {
-
+                // every page of changes is applied and checkpointed while getting the next one, but a page isn't
+                // applied until the previous one is written, so a failed page is not skipped
+                final String[] checkpoint = {revision};
+                final AtomicReference<CompletableFuture<Void>> written = new AtomicReference<>(
+                        CompletableFuture.completedFuture(null));
+                googleDrive.getChanges(revision, (googleChanges, pageToken) -> {
+                    if (googleChanges.isEmpty() && pageToken.equals(checkpoint[0])) {
+                        return;
+                    }
                     LOG.info("Remote changes: " + googleChanges.size());
+                    changesApplied.addAndGet(googleChanges.size());
 
+                    // changes and revision to start next time there are saved in the same transaction
+                    await(written.get());
+                    written.set(cache.applyChangesAsync(lazy ? knownChanges(googleChanges) : googleChanges, pageToken));
                     for (GChange change : googleChanges) {
-                        processChange(change);
-                        revision = change.getRevision();
+                        if (!change.isDeletion() && change.getFile().isDirectory()) {
+                            // there can be new folders to crawl
+                            seedFrontier = true;
+                            break;
+                        }
                     }
+                    checkpoint[0] = pageToken;
+                    LOG.info("New revision: " + pageToken);
+                });
+                await(written.get());
 
-                    // update revision to start next time there
-                    cache.updateRevision(revision);
-                    LOG.info("New revision: " + revision);
+                LOG.debug("No remote changes...");
+            }
+
+            private void syncPendingFolders() {
+                LOG.debug("Checking for pending folders to synchronize...");
+                // crawl goes on in background, so we just feed it with the folders not crawled yet
+                if (frontierSize.get() < maxPendingFolders / 2) {
+                    refillFrontier();
                 }
+            }
+        };
 
-                LOG.debug("No remote changes...");
+    }
+
+    /**
+     * Add the folders of the crawl frontier persisted in the cache to the frontier. Groups of folders whose listing
+     * was interrupted are resumed first
+     */
+    private void refillFrontier() {
+        synchronized (refillLock) {
+            crawledSinceRefill.set(0);
+            List<CrawlFrontierEntry> entries = cache.getCrawlFrontier(maxPendingFolders);
+            if (entries.isEmpty() && seedFrontier) {
+                // folders added by the remote changes or by a version that didn't persist the crawl frontier
+                seedFrontier = false;
+                cache.addToCrawlFrontier(cache.getAllFoldersWithoutRevision());
+                entries = cache.getCrawlFrontier(maxPendingFolders);
+            }
+            queue(entries);
+        }
+        startCrawlTasks();
+    }
+
+    /**
+     * Add the entries of the crawl frontier to the frontier. It must be called holding the refill lock
+     *
+     * @param entries the entries
+     */
+    private void queue(List<CrawlFrontierEntry> entries) {
+
+        final Map<String, CrawlGroup> groups = new LinkedHashMap<>();
+        final List<String> folderIds = new ArrayList<>(entries.size());
+        for (CrawlFrontierEntry entry : entries) {
+            if (entry.getPageToken() == null) {
+                folderIds.add(entry.getFolderId());
+                continue;
             }
+            groups.computeIfAbsent(entry.getGroupId(), groupId -> new CrawlGroup(groupId, new ArrayList<>(),
+                    entry.getPageToken())).folderIds.add(entry.getFolderId());
+        }
+        int added = 0;
+        for (CrawlGroup group : groups.values()) {
+            // folders added to the frontier meanwhile by the crawl tasks are checked and added holding the same lock
+            if (Collections.disjoint(crawling, group.folderIds) && crawling.addAll(group.folderIds)) {
+                LOG.info("Resuming synchronization of folders " + group.folderIds + "...");
+                resumedGroups.add(group);
+                frontierSize.addAndGet(group.folderIds.size());
+                added += group.folderIds.size();
+            }
+        }
+        added += addToFrontier(folderIds);
+        if (added > 0) {
+            LOG.info("Folders to synchronize: " + entries.size() + ". Queued: " + frontierSize.get());
+        }
+    }
 
-            private void processChange(GChange change) {
+    /**
+     * Wait for a write submitted to the cache
+     *
+     * @param write the write
+     */
+    private static void await(CompletableFuture<Void> write) {
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
 
-                if (change.isRemoved() || change.getFile().getTrashed()) {
-                    final GFile localFile = cache.getFile(change.getFileId());
-                    if (localFile != null) {
-                        LOG.info("Remote deletion: " + localFile.getId());
-                        int deletedFiles = cache.deleteFile(localFile.getId());
-                        LOG.debug("Total records deleted: " + deletedFiles);
-                    }
-                    return;
+    /**
+     * Add folders to the frontier, as long as they are not there already or being crawled and the frontier is not full
+     *
+     * @param folderIds the folders
+     * @return number of folders added
+     */
+    private int addToFrontier(List<String> folderIds) {
+        synchronized (refillLock) {
+            int added = 0;
+            for (String folderId : folderIds) {
+                if (frontierSize.get() >= maxPendingFolders) {
+                    break;
+                }
+                if (crawling.add(folderId)) {
+                    frontier.add(folderId);
+                    frontierSize.incrementAndGet();
+                    added++;
+                }
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Start crawl tasks for the folders in the frontier, up to the number of tasks the quota allows
+     */
+    private void startCrawlTasks() {
+        final int limit = getCrawlTasksLimit();
+        while (frontierSize.get() > 0) {
+            int tasks = crawlTasks.get();
+            if (tasks >= limit) {
+                return;
+            }
+            if (crawlTasks.compareAndSet(tasks, tasks + 1)) {
+                crawlExecutor.execute(new CrawlTask());
+            }
+        }
+    }
+
+    /**
+     * Tasks waiting for the quota governor just delay the other requests, so there are as many tasks as the current
+     * rate allows: the max number of tasks at the max rate, and less while google is throttling us
+     *
+     * @return max number of crawl tasks running now
+     */
+    private int getCrawlTasksLimit() {
+        QuotaGovernor quotaGovernor = googleDrive.getQuotaGovernor();
+        return Math.max(1, (int) Math.round(maxCrawlTasks * quotaGovernor.getRate() / quotaGovernor.getMaxRate()));
+    }
+
+    /**
+     * @return number of folders waiting to be crawled
+     */
+    public int getCrawlBacklog() {
+        return frontierSize.get();
+    }
+
+    /**
+     * @return number of folders crawled so far
+     */
+    public long getFoldersCrawled() {
+        return foldersCrawled.get();
+    }
+
+    /**
+     * Folders listed together with the same query
+     */
+    private static final class CrawlGroup {
+
+        private final String groupId;
+
+        /**
+         * The folders, in the order of the query
+         */
+        private final List<String> folderIds;
+
+        /**
+         * Token of the next page of the listing or <code>null</code> to start at the first one
+         */
+        private final String pageToken;
+
+        private CrawlGroup(String groupId, List<String> folderIds, String pageToken) {
+            this.groupId = groupId;
+            this.folderIds = folderIds;
+            this.pageToken = pageToken;
+        }
+
+        /**
+         * @param folderIds the folders
+         * @return a new group listing the folders from the first page
+         */
+        private static CrawlGroup of(List<String> folderIds) {
+            // folders are sorted so the query is the same when the group is loaded again from the cache
+            List<String> sorted = new ArrayList<>(folderIds);
+            Collections.sort(sorted);
+            return new CrawlGroup(sorted.get(0), sorted, null);
+        }
+    }
+
+    /**
+     * Takes a group of folders to resume or up to {@link #FOLDERS_PER_TASK} folders from the frontier, synchronizes
+     * them and adds their subfolders to the frontier. Then it starts new tasks if there are folders waiting. There is
+     * no barrier between tasks, so a slow folder only delays its own task, and the requests are throttled by the quota
+     * governor like any other. Every page listed is saved in the cache, so the crawl resumes where it stopped.
+     */
+    private final class CrawlTask implements Runnable {
+
+        @Override
+        public void run() {
+            final List<String> taken = new ArrayList<>(FOLDERS_PER_TASK);
+            CrawlGroup resumed = resumedGroups.poll();
+            if (resumed != null) {
+                taken.addAll(resumed.folderIds);
+            } else {
+                String folderId;
+                while (taken.size() < FOLDERS_PER_TASK && (folderId = frontier.poll()) != null) {
+                    taken.add(folderId);
                 }
+            }
+            frontierSize.addAndGet(-taken.size());
 
-                final GFile localFile = cache.getFile(change.getFileId());
-                if (localFile == null) {
-                    // TODO: arreglar el path?
-                    GFile changedFile = change.getFile();
-                    if (!changedFile.isDirectory()) {
-                        // if it's a directory we don't set revision so it's synchronized afterwards
-                        changedFile.setRevision(change.getRevision());
+            final CompletableFuture<Void> synchronization = new CompletableFuture<>();
+            final List<String> claimed = new ArrayList<>(taken.size());
+            try {
+                // they could have been prioritized meanwhile
+                final List<String> folderIds = new ArrayList<>(taken.size());
+                final List<String> done = new ArrayList<>();
+                for (String folderId : taken) {
+                    // folders being synchronized by a prioritized task are removed from the crawl frontier by it
+                    if (synchronizing.putIfAbsent(folderId, synchronization) == null) {
+                        claimed.add(folderId);
+                        (isPending(folderId) ? folderIds : done).add(folderId);
+                    }
+                }
+                if (!done.isEmpty()) {
+                    cache.removeFromCrawlFrontier(done);
+                }
+                if (!folderIds.isEmpty()) {
+                    // a different group of folders can't resume the listing
+                    final CrawlGroup group = resumed != null && folderIds.size() == taken.size() ? resumed
+                            : CrawlGroup.of(folderIds);
+                    try {
+                        RequestPriority.run(RequestPriority.CRAWL, () -> crawl(group));
+                    } catch (Exception e) {
+                        // folders are still in the crawl frontier, so they will be crawled again later
+                        LOG.error("Error synchronizing folders " + folderIds + ": " + e.getMessage(), e);
+                        cache.failCrawl(folderIds, crawlRetryBackoff, maxCrawlRetryBackoff);
+                        synchronization.completeExceptionally(e);
                     }
-                    LOG.info("New remote file: " + changedFile.getId());
-                    cache.addOrUpdateFile(changedFile);
-                } else {
-                    // File updated
-                    GFile changedFile = change.getFile();
-                    changedFile.setRevision(change.getRevision());
-                    cache.addOrUpdateFile(changedFile);
-                    LOG.info("Remote update: " + localFile);
                 }
+            } catch (Exception e) {
+                LOG.error("Error updating crawl frontier: " + e.getMessage(), e);
+                synchronization.completeExceptionally(e);
+            } finally {
+                synchronizing.keySet().removeAll(claimed);
+                synchronization.complete(null);
+                crawling.removeAll(taken);
+                crawlTasks.decrementAndGet();
             }
 
-            private void syncPendingFolders() {
-                LOG.debug("Checking for pending folders to synchronize...");
-                try {
-                    // always sync pending directories first
-                    List<String> unsynchChilds;
-                    while (!(unsynchChilds = cache.getAllFoldersWithoutRevision()).isEmpty()) {
-
-                        LOG.info("Folders to synchronize: " + unsynchChilds.size());
-
-                        List<Callable<Void>> tasks = new ArrayList<>();
-                        for (int i = 0; i < 10 && i < unsynchChilds.size(); i++) {
-                            final String unsynchChild = unsynchChilds.get(i);
-                            LOG.debug("Creating synch task for '" + unsynchChild + "'...");
-                            tasks.add(new Callable<Void>() {
-                                final String folderId = unsynchChild;
-
-                                @Override
-                                public Void call() {
-                                    synchFolder(folderId);
-                                    return null;
-                                }
-                            });
-                        }
+            startCrawlTasks();
+            if (crawlTasks.get() == 0 && frontierSize.get() == 0 && crawledSinceRefill.get() > 0) {
+                // frontier was full at some point, so there may be more folders pending in the cache
+                refillFrontier();
+            }
+        }
 
-                        LOG.debug("Executing " + tasks.size() + " tasks...");
-                        List<Future<Void>> futures = executor.invokeAll(tasks);
-                        LOG.debug("Waiting for all executions to finish...");
-                        while (!futures.isEmpty()) {
-                            Thread.sleep(200);
-                            LOG.trace(".");
-                            futures.removeIf(Future::isDone);
-                        }
+        private void crawl(CrawlGroup group) {
+            LOG.debug("Synchronizing folders " + group.folderIds + "...");
+            final Map<String, GFile> remoteFolders = getRemoteFolders(group.folderIds);
+            final List<GFile> folders = new ArrayList<>(group.folderIds.size());
+            final List<String> gone = new ArrayList<>();
+            for (String folderId : group.folderIds) {
+                GFile remoteFolder = remoteFolders.get(folderId);
+                if (checkRemoteFolder(folderId, remoteFolder)) {
+                    folders.add(remoteFolder);
+                } else {
+                    gone.add(folderId);
+                }
+            }
+            foldersCrawled.addAndGet(group.folderIds.size());
+            if (!gone.isEmpty()) {
+                // folders that can't be synchronized (i.e. they are files now) don't count, so we don't retry them forever
+                cache.removeFromCrawlFrontier(gone);
+                if (folders.isEmpty()) {
+                    return;
+                }
+                List<String> folderIds = new ArrayList<>(group.folderIds);
+                folderIds.removeAll(gone);
+                group = CrawlGroup.of(folderIds);
+            }
 
-                        LOG.debug("All executions finished to run");
-                        syncPendingFolders();
+            // a page is written while getting the next one. Its subfolders are crawled once it's written
+            final CrawlGroup listedGroup = group;
+            final String revision = cache.getRevision();
+            final AtomicReference<CompletableFuture<Void>> written = new AtomicReference<>(
+                    CompletableFuture.completedFuture(null));
+            final List<String> writtenSubfolders = new ArrayList<>();
+            googleDrive.list(listedGroup.folderIds, listedGroup.pageToken, (childs, nextPageToken) -> {
+                final List<String> subfolders = new ArrayList<>();
+                for (GFile child : childs) {
+                    if (child.isDirectory()) {
+                        subfolders.add(child.getId());
+                    } else {
+                        child.setRevision(revision);
                     }
-                } catch (InterruptedException e) {
-                    LOG.error(e.getMessage(), e);
                 }
-                LOG.debug("Synchronization finalized OK");
+                await(written.get());
+                addToFrontier(writtenSubfolders);
+                writtenSubfolders.clear();
+                written.set(cache.saveCrawlPageAsync(listedGroup.groupId, listedGroup.folderIds, childs, nextPageToken));
+                writtenSubfolders.addAll(subfolders);
+            });
+            await(written.get());
+            addToFrontier(writtenSubfolders);
+
+            for (GFile folder : folders) {
+                LOG.info("Folder '" + folder.getId() + "' synchronized");
+                folder.setRevision(revision);
             }
-        };
+            cache.completeCrawl(folders);
+            crawledSinceRefill.addAndGet(folders.size());
+        }
+    }
 
+    /**
+     * Filter the changes of files we don't know about, that is, files not in the cache and not in a synchronized
+     * folder
+     *
+     * @param changes the changes
+     * @return the changes of the files we know about
+     */
+    private List<GChange> knownChanges(List<GChange> changes) {
+        final List<GChange> ret = new ArrayList<>(changes.size());
+        for (GChange change : changes) {
+            if (change.isDeletion() || cache.getFile(change.getFileId()) != null) {
+                ret.add(change);
+                continue;
+            }
+            for (String parentId : change.getFile().getParents()) {
+                GFile parent = cache.getFile(parentId);
+                if (parent != null && parent.getRevision() != null) {
+                    ret.add(change);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Evict the children of the folders not used for a while, so they are synchronized again the next time they are
+     * used
+     */
+    private void evictIdleFolders() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> access : folderAccess.entrySet()) {
+            if (now - access.getValue() > evictAfter && folderAccess.remove(access.getKey(), access.getValue())) {
+                LOG.info("Evicting idle folder '" + access.getKey() + "'");
+                evictFolder(access.getKey());
+            }
+        }
+    }
+
+    private void evictFolder(String folderId) {
+        // subfolders first, so we don't leave their children orphan. They are idle too because using a folder uses
+        // its ancestors
+        for (GFile child : cache.getFiles(folderId)) {
+            if (child.isDirectory() && child.getRevision() != null) {
+                folderAccess.remove(child.getId());
+                evictFolder(child.getId());
+            }
+        }
+        cache.evictFolder(folderId);
+    }
+
+    /**
+     * Fill the empty cache listing all the files in the drive page after page. As every folder gets all its
+     * children, all of them are marked as synchronized.
+     *
+     * @param revision the revision to set to all the files
+     */
+    private void bootstrap(final String revision) {
+        LOG.info("Cache is empty. Loading all files...");
+        final long[] total = {0};
+        googleDrive.listAll(files -> {
+            for (GFile file : files) {
+                file.setRevision(revision);
+            }
+            cache.addOrUpdateFiles(files);
+            total[0] += files.size();
+            LOG.info("Files loaded: " + total[0]);
+        });
+
+        GFile rootFile = cache.getFile("root");
+        rootFile.setParents(Collections.emptySet());
+        rootFile.setRevision(revision);
+        cache.addOrUpdateFile(rootFile);
+        LOG.info("All files loaded: " + total[0]);
     }
 
     /**
@@ -204,31 +905,103 @@ public final class FtpGdriveSynchService {
      * @param folderId el id de la carpeta remota ("root" para especificar la raiz)
      */
     private void synchFolder(String folderId) {
-        try {
-            GFile remoteFile;
-            if (folderId.equals("root")) {
-                remoteFile = cache.getFile("root");
-            } else {
-                remoteFile = googleDrive.getFile(folderId);
+        synchFolder(folderId, folderId.equals("root") ? cache.getFile("root") : googleDrive.getFile(folderId));
+    }
+
+    /**
+     * Get remote folders metadata in batch
+     *
+     * @param folderIds the folders ids
+     * @return the remote folders. Folders that don't exist anymore are mapped to <code>null</code>
+     */
+    private Map<String, GFile> getRemoteFolders(List<String> folderIds) {
+        List<String> remoteIds = new ArrayList<>(folderIds);
+        remoteIds.remove("root");
+        Map<String, GFile> ret = googleDrive.getFiles(remoteIds);
+        if (folderIds.contains("root")) {
+            ret.put("root", cache.getFile("root"));
+        }
+        return ret;
+    }
+
+    /**
+     * Get the children of several remote folders with the same query and updates database
+     *
+     * @param folderIds     the folders to synchronize
+     * @param remoteFolders the remote folders metadata
+     * @return the subfolders found, which are pending to synchronize
+     */
+    private List<String> synchFolders(List<String> folderIds, Map<String, GFile> remoteFolders) {
+        List<String> existingFolderIds = new ArrayList<>(folderIds.size());
+        for (String folderId : folderIds) {
+            if (checkRemoteFolder(folderId, remoteFolders.get(folderId))) {
+                existingFolderIds.add(folderId);
             }
+        }
+        if (existingFolderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
 
-            if (remoteFile == null || remoteFile.getTrashed()) {
-                LOG.info("Remote deletion: " + folderId);
-                final int deleted = cache.deleteFile(folderId);
-                if (deleted > 0) {
-                    LOG.info("Local deletion: " + folderId);
-                } else {
-                    LOG.info("Location deletion: 0");
+        LOG.debug("Recreating childs for folders " + existingFolderIds);
+        Map<String, List<GFile>> newChilds = googleDrive.list(existingFolderIds);
+        List<String> subfolders = new ArrayList<>();
+        for (String folderId : existingFolderIds) {
+            List<GFile> childs = newChilds.get(folderId);
+            updateFolder(remoteFolders.get(folderId), childs);
+            for (GFile child : childs) {
+                if (child.isDirectory()) {
+                    subfolders.add(child.getId());
                 }
-                return;
             }
+        }
+        return subfolders;
+    }
+
+    /**
+     * Get remote folder children and updates database
+     *
+     * @param folderId   el id de la carpeta remota ("root" para especificar la raiz)
+     * @param remoteFile the remote folder or <code>null</code> if it doesn't exist anymore
+     */
+    private void synchFolder(String folderId, GFile remoteFile) {
+        if (!checkRemoteFolder(folderId, remoteFile)) {
+            return;
+        }
+
+        LOG.debug("Recreating childs for folder '" + folderId + "'");
+        updateFolder(remoteFile, googleDrive.list(folderId));
+    }
 
-            if (!remoteFile.isDirectory()) {
-                throw new IllegalArgumentException("Can't sync folder '" + folderId + "' because it is a regular file");
+    /**
+     * Check the remote folder still exists. If it doesn't, it's deleted from database
+     *
+     * @param folderId   the folder id
+     * @param remoteFile the remote folder or <code>null</code> if it doesn't exist anymore
+     * @return <code>true</code> if the folder exists and so it can be synchronized
+     */
+    private boolean checkRemoteFolder(String folderId, GFile remoteFile) {
+        if (remoteFile == null || remoteFile.getTrashed()) {
+            LOG.info("Remote deletion: " + folderId);
+            final int deleted = cache.deleteFile(folderId);
+            if (deleted > 0) {
+                LOG.info("Local deletion: " + folderId);
+            } else {
+                LOG.info("Location deletion: 0");
             }
+            return false;
+        }
 
+        if (!remoteFile.isDirectory()) {
+            LOG.error("Can't sync folder '" + folderId + "' because it is a regular file");
+            return false;
+        }
+        return true;
+    }
+
+    private void updateFolder(GFile remoteFile, List<GFile> newChilds) {
+        try {
             // Log action
-            if (cache.getFile(folderId) == null) {
+            if (cache.getFile(remoteFile.getId()) == null) {
                 LOG.info("Adding folder '" + remoteFile.getId() + "'");
             } else {
                 LOG.info("Updating folder '" + remoteFile.getId() + "'");
@@ -236,8 +1009,6 @@ public final class FtpGdriveSynchService {
 
             String largestChangeId = cache.getRevision();
 
-            LOG.debug("Recreating childs for folder '" + folderId + "'");
-            List<GFile> newChilds = googleDrive.list(folderId);
             for (GFile file : newChilds) {
                 if (!file.isDirectory())
                     file.setRevision(largestChangeId);
@@ -14,6 +14,10 @@ import org.apache.ftpserver.ftplet.*;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -148,6 +152,8 @@ public class FtpFileSystemView implements FileSystemFactory, FileSystemView {
 
             if (file != null && file.isDirectory()) {
                 currentDir = file;
+                // user will probably list the folder, so we synchronize it now if it's not synchronized yet
+                prioritize(file);
                 return true;
             }
 
@@ -289,6 +295,12 @@ public class FtpFileSystemView implements FileSystemFactory, FileSystemView {
         String absolutePath = folder.getAbsolutePath() + (folder.isRoot() ? "" : FILE_SEPARATOR) + fileName;
         LOG.debug("Querying for file '" + absolutePath + "' inside folder '" + folder + "'...");
 
+        // in lazy mode the folder may not be in the cache until someone asks for it. Otherwise it's there or the
+        // crawl will get to it, so the path is resolved without waiting
+        if (cacheUpdater.isLazy()) {
+            awaitSynchronization(folder);
+        }
+
         try {
             GFile fileByName = model.getFileByName(folder.getId(), fileName);
             if (fileByName != null) {
@@ -363,6 +375,11 @@ public class FtpFileSystemView implements FileSystemFactory, FileSystemView {
 
         LOG.debug("Listing " + folder.getAbsolutePath());
 
+        // wait a bit for the folder if it's not synchronized yet, instead of returning an empty list
+        if (cacheUpdater.isLazy() || isPending(folder)) {
+            awaitSynchronization(folder);
+        }
+
         List<GFile> query = controller.getFiles(folder.getId());
         if (query.isEmpty()) {
             return Collections.emptyList();
@@ -403,6 +420,47 @@ public class FtpFileSystemView implements FileSystemFactory, FileSystemView {
         return new ArrayList<>(ret);
     }
 
+    /**
+     * @param folder the folder
+     * @return <code>true</code> if the folder is in the cache but it wasn't synchronized yet
+     */
+    private boolean isPending(FtpFileWrapper folder) {
+        GFile cached = model.getFile(folder.getId());
+        return cached != null && cached.isDirectory() && cached.getRevision() == null;
+    }
+
+    /**
+     * Synchronize the folder and its ancestors, waiting for them a bit
+     *
+     * @param folder the folder
+     */
+    private void awaitSynchronization(FtpFileWrapper folder) {
+        Future<Void> synchronization = prioritize(folder);
+        try {
+            synchronization.get(cacheUpdater.getPrioritizedWait(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.info("Folder '" + folder.getAbsolutePath() + "' not synchronized yet");
+        } catch (ExecutionException e) {
+            LOG.warn("Error synchronizing folder '" + folder.getAbsolutePath() + "': " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Synchronize the folder and its ancestors before the crawl gets to them
+     *
+     * @param folder the folder
+     * @return future completed when the folder and its ancestors are synchronized
+     */
+    private Future<Void> prioritize(FtpFileWrapper folder) {
+        List<String> folderIds = new ArrayList<>();
+        for (FtpFileWrapper file = folder; file != null; file = file.getParentFile()) {
+            folderIds.add(file.getId());
+        }
+        return cacheUpdater.prioritize(folderIds);
+    }
+
     private String encodeFilename(String filename, String fileId) {
         // split the file name & extension (if it applies) so we can inject the google file id within the two
         final int fileSuffixPos = filename.lastIndexOf('.');
@@ -153,7 +153,7 @@ class FtpFileWrapper implements FtpFile {
 
     @Override
     public InputStream createInputStream(long offset) {
-        return controller.createInputStream(this.unwrap());
+        return controller.createInputStream(this.unwrap(), offset);
     }
 
     @Override
@@ -0,0 +1,174 @@
+package org.andresoviedo.util.concurrent;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller executes the call and the callers arriving while
+ * it's in flight wait for it and share its result (or its exception). Nothing is cached once the call completes.
+ * <p>
+ * Every caller gets its own copy of the result, the one that executed the call included, so they can modify it.
+ * <p>
+ * Callers waiting for a call in flight go at its pace, so calls are only coalesced in the same lane (i.e. the priority
+ * of the calling thread). This way a caller never waits for a call that was made with a lower priority.
+ * <p>
+ * It keeps count of how many calls were shared for every key, up to a max number of keys. When it's full, the half of
+ * the keys shared the least are dropped and the counts of the others are halved, so new keys can get in and the counts
+ * reflect the recent calls.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the result
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<Map.Entry<Object, K>, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<K, AtomicLong> sharedPerKey = new ConcurrentHashMap<>();
+
+    private final int maxKeys;
+
+    /**
+     * Copies the result for every caller, so they can modify it
+     */
+    private final UnaryOperator<V> copier;
+
+    /**
+     * Lane of the calling thread
+     */
+    private final Supplier<?> lane;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * @param copier  copies the result for every caller
+     * @param maxKeys max number of keys to keep statistics for
+     */
+    public SingleFlight(UnaryOperator<V> copier, int maxKeys) {
+        this(copier, () -> null, maxKeys);
+    }
+
+    /**
+     * @param copier  copies the result for every caller
+     * @param lane    lane of the calling thread. Calls are only coalesced with calls in flight in the same lane
+     * @param maxKeys max number of keys to keep statistics for
+     */
+    public SingleFlight(UnaryOperator<V> copier, Supplier<?> lane, int maxKeys) {
+        this.copier = copier;
+        this.lane = lane;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Execute the call or wait for the one already in flight with the same key
+     *
+     * @param key  key of the call
+     * @param call the call
+     * @return the result of the call
+     */
+    public V execute(K key, Supplier<V> call) {
+        calls.incrementAndGet();
+        final Map.Entry<Object, K> flight = new AbstractMap.SimpleImmutableEntry<>(lane.get(), key);
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(flight, future);
+        if (existing != null) {
+            countShared(key);
+            return copy(join(existing));
+        }
+        try {
+            V result = call.get();
+            // the shared result is never returned, so nobody modifies it while the others are copying it
+            future.complete(result);
+            return copy(result);
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flight, future);
+        }
+    }
+
+    private V copy(V result) {
+        return result != null ? copier.apply(result) : null;
+    }
+
+    void countShared(K key) {
+        shared.incrementAndGet();
+        AtomicLong counter = sharedPerKey.get(key);
+        if (counter == null) {
+            if (sharedPerKey.size() >= maxKeys) {
+                decay();
+            }
+            counter = sharedPerKey.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Drop the half of the keys shared the least and halve the counts of the others
+     */
+    private synchronized void decay() {
+        if (sharedPerKey.size() < maxKeys) {
+            return;
+        }
+        List<Map.Entry<K, AtomicLong>> entries = new ArrayList<>(sharedPerKey.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().get()));
+        for (int i = 0; i < entries.size(); i++) {
+            Map.Entry<K, AtomicLong> entry = entries.get(i);
+            if (i < entries.size() / 2) {
+                sharedPerKey.remove(entry.getKey(), entry.getValue());
+            } else {
+                entry.getValue().updateAndGet(count -> count / 2);
+            }
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return total number of calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls that shared the result of a call in flight
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * @return number of calls that shared the result of a call in flight, per key
+     */
+    public Map<K, Long> getSharedPerKey() {
+        Map<K, Long> ret = new HashMap<>();
+        sharedPerKey.forEach((key, counter) -> ret.put(key, counter.get()));
+        return ret;
+    }
+}
@@ -0,0 +1,220 @@
+package org.andresoviedo.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pipe between a writer thread and a reader thread backed by a ring buffer. It's a replacement for
+ * {@link java.io.PipedOutputStream}/{@link java.io.PipedInputStream}, which have a 1KB buffer by default and poll
+ * every second when the pipe is full or empty.
+ * <p>
+ * Readers and writers are woken up as soon as there is data or space available. Reading and writing just copy
+ * bytes to or from the ring buffer, and the buffers of the default size are reused between pipes.
+ */
+public final class RingBufferPipe {
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final Queue<byte[]> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final byte[] buffer;
+    private final InputStream inputStream = new PipeInputStream();
+    private final OutputStream outputStream = new PipeOutputStream();
+
+    private int readPos;
+    private int writePos;
+    private int count;
+    private boolean readerClosed;
+    private boolean writerClosed;
+    private boolean released;
+
+    public RingBufferPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RingBufferPipe(int capacity) {
+        byte[] pooled = capacity == DEFAULT_CAPACITY ? BUFFER_POOL.poll() : null;
+        this.buffer = pooled != null ? pooled : new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (readerClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (writerClosed) {
+                    return -1;
+                }
+                await(notEmpty);
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            final int n = Math.min(len, count);
+            final int first = Math.min(n, buffer.length - readPos);
+            System.arraycopy(buffer, readPos, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notFull.signal();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            lock.lock();
+            try {
+                while (count == buffer.length && !readerClosed && !writerClosed) {
+                    await(notFull);
+                }
+                if (writerClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (readerClosed) {
+                    throw new IOException("Pipe closed by reader");
+                }
+                final int n = Math.min(len, buffer.length - count);
+                final int first = Math.min(n, buffer.length - writePos);
+                System.arraycopy(b, off, buffer, writePos, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                writePos = (writePos + n) % buffer.length;
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void closeReader() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeWriter() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the buffer to the pool once nobody can use it anymore
+     */
+    private void release() {
+        if (readerClosed && writerClosed && !released) {
+            released = true;
+            if (buffer.length == DEFAULT_CAPACITY && BUFFER_POOL.size() < MAX_POOLED_BUFFERS) {
+                BUFFER_POOL.offer(buffer);
+            }
+        }
+    }
+
+    private static void await(Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return RingBufferPipe.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            return RingBufferPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            RingBufferPipe.this.write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            RingBufferPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package org.andresoviedo.util.program;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -11,7 +8,6 @@ import java.util.Scanner;
 
 public final class ProgramUtils {
 
-    private static final Log LOG = LogFactory.getLog(ProgramUtils.class);
     private final File file;
 
     public ProgramUtils(String executionStatusFilename) {
@@ -62,47 +58,4 @@ public final class ProgramUtils {
             }
         }
     }
-
-    public static final class RequestsPerSecondController {
-
-        private final int maxRequestPerSecond;
-        private final long period;
-        private int requestTimes = 0;
-        private long time = 0;
-
-        public RequestsPerSecondController(int maxRequestPerSecond, long period) {
-            this.maxRequestPerSecond = maxRequestPerSecond;
-            this.period = period;
-        }
-
-        public void start() {
-            reset();
-            LOG.info("Started at " + time);
-        }
-
-        public void reset() {
-            time = System.currentTimeMillis();
-            requestTimes = 0;
-        }
-
-        public synchronized void newRequest() {
-            final long newTime = System.currentTimeMillis();
-            final long expiratonTime = time + period;
-            requestTimes++;
-            if (newTime < expiratonTime) {
-                if (requestTimes >= maxRequestPerSecond) {
-                    LOG.info("Reached limit! sleeping " + (expiratonTime - newTime) + " millis,,,");
-                    try {
-                        Thread.sleep(expiratonTime - newTime);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    reset();
-                }
-            } else { /* if (newTime >= expiratonTime) { */
-                requestTimes = 0;
-                time = newTime;
-            }
-        }
-    }
 }
@@ -0,0 +1,98 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Compares the heap taken by the metadata of a drive in {@link CompactTreeIndex} vs a {@link GFile} per file (a map
+ * of files by id and the children of every folder, like a plain in-memory cache would do). The drive has folders of
+ * 100 files with random ids, names, checksums and a few mime types.
+ * <p>
+ * Run it with: <code>mvn test-compile exec:java
+ * -Dexec.mainClass=org.andresoviedo.google_drive_ftp_adapter.model.CompactTreeIndexBenchmark
+ * -Dexec.classpathScope=test -Dexec.args=1000000</code> (with enough heap for the GFile model, i.e.
+ * <code>MAVEN_OPTS=-Xmx4g</code>)
+ */
+public final class CompactTreeIndexBenchmark {
+
+    private static final String[] MIME_TYPES = {"application/pdf", "image/jpeg", "text/plain",
+            "application/vnd.google-apps.document", "video/mp4"};
+
+    public static void main(String[] args) {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long before = usedMemory();
+        Map<String, GFile> byId = new HashMap<>();
+        Map<String, List<GFile>> childs = new HashMap<>();
+        generate(files, file -> {
+            byId.put(file.getId(), file);
+            for (String parent : file.getParents()) {
+                childs.computeIfAbsent(parent, id -> new ArrayList<>()).add(file);
+            }
+        });
+        report("GFile per file", files, usedMemory() - before);
+        check(byId.size() + childs.size());
+        byId.clear();
+        childs.clear();
+
+        before = usedMemory();
+        CompactTreeIndex index = new CompactTreeIndex(files);
+        generate(files, index::put);
+        report("CompactTreeIndex", files, usedMemory() - before);
+        check(index.size());
+    }
+
+    private static void generate(int files, Consumer<GFile> consumer) {
+        // same drive every time
+        Random random = new Random(1);
+        String folderId = "root";
+        for (int i = 0; i < files; i++) {
+            if (i % 100 == 0) {
+                GFile folder = new GFile(Collections.singleton(folderId), "folder " + i);
+                folder.setId(randomId(random));
+                folder.setDirectory(true);
+                folder.setMimeType("application/vnd.google-apps.folder");
+                folder.setRevision(String.valueOf(1000 + random.nextInt(100)));
+                consumer.accept(folder);
+                folderId = folder.getId();
+                continue;
+            }
+            GFile file = new GFile(Collections.singleton(folderId), "document " + i + " " + randomId(random).substring(0, 8) + ".pdf");
+            file.setId(randomId(random));
+            file.setSize(random.nextInt(100000000));
+            file.setLastModified(1500000000000L + random.nextInt(1000000000));
+            file.setMimeType(MIME_TYPES[random.nextInt(MIME_TYPES.length)]);
+            file.setMd5Checksum(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+            file.setRevision(String.valueOf(1000 + random.nextInt(100)));
+            consumer.accept(file);
+        }
+    }
+
+    private static String randomId(Random random) {
+        final String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        char[] id = new char[33];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = chars.charAt(random.nextInt(chars.length()));
+        }
+        return new String(id);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int files, long bytes) {
+        System.out.printf("%-18s %,d files: %,d MB (%d bytes/file)%n", name, files, bytes / (1024 * 1024), bytes / files);
+    }
+
+    private static void check(int size) {
+        // keeps the structures reachable until they are measured
+        if (size == 0) {
+            throw new IllegalStateException();
+        }
+    }
+}
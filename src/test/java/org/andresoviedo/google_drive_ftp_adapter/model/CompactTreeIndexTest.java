@@ -0,0 +1,172 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+
+import java.util.*;
+
+public class CompactTreeIndexTest {
+
+    private static GFile file(String id, String name, String... parents) {
+        GFile file = new GFile(new HashSet<>(Arrays.asList(parents)), name);
+        file.setId(id);
+        file.setSize(id.length());
+        file.setLastModified(1000L + id.length());
+        file.setMimeType("text/plain");
+        file.setMd5Checksum("d41d8cd98f00b204e9800998ecf8427e");
+        file.setRevision("10");
+        return file;
+    }
+
+    /**
+     * @return file without parents, like the ones read from the database
+     */
+    private static GFile child(String id) {
+        GFile file = file(id, id + ".txt");
+        file.setParents(null);
+        return file;
+    }
+
+    @Test
+    public void testFilesAreReadBackAsTheyWereAdded() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        GFile folder = file("folder", "folder", "root");
+        folder.setDirectory(true);
+        folder.setMd5Checksum(null);
+        folder.setRevision(null);
+        index.put(folder);
+        index.put(file("a", "ñandú.txt", "folder"));
+        index.put(file("b", "b.txt", "folder", "root"));
+
+        GFile a = index.getFileByName("folder", "ñandú.txt");
+        Assert.assertEquals("a", a.getId());
+        Assert.assertEquals("text/plain", a.getMimeType());
+        Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", a.getMd5Checksum());
+        Assert.assertEquals("10", a.getRevision());
+        Assert.assertEquals(1, a.getSize());
+        Assert.assertEquals(1001, a.getLastModified());
+        Assert.assertEquals(Collections.singleton("folder"), a.getParents());
+        Assert.assertFalse(a.isDirectory());
+
+        Assert.assertEquals(2, index.getFiles("folder").size());
+        Assert.assertEquals(2, index.getFiles("root").size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("folder", "root")), index.getParents("b"));
+        Assert.assertEquals(Collections.singletonList("folder"), index.getAllFoldersWithoutRevision());
+        // root is only known as a parent
+        Assert.assertNull(index.getFile("root"));
+    }
+
+    @Test
+    public void testUpdatesAndRemovals() {
+        CompactTreeIndex index = new CompactTreeIndex(16);
+        for (int i = 0; i < 1000; i++) {
+            index.put(file("id" + i, "file" + i, "root"));
+        }
+        // move and rename
+        index.put(file("id1", "renamed", "other"));
+        Assert.assertNull(index.getFileByName("root", "file1"));
+        Assert.assertEquals("id1", index.getFileByName("other", "renamed").getId());
+
+        for (int i = 0; i < 1000; i += 2) {
+            Assert.assertTrue(index.remove("id" + i));
+        }
+        Assert.assertFalse(index.remove("id0"));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i % 2 == 1, index.getFile("id" + i) != null);
+        }
+        Assert.assertEquals(499, index.getFiles("root").size());
+
+        // removed nodes are reused
+        index.put(file("new", "file0", "root"));
+        Assert.assertEquals("new", index.getFileByName("root", "file0").getId());
+    }
+
+    @Test(expected = IncorrectResultSizeDataAccessException.class)
+    public void testDuplicatedNames() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        index.put(file("a", "same.txt", "root"));
+        index.put(file("b", "same.txt", "root"));
+        index.getFileByName("root", "same.txt");
+    }
+
+    @Test
+    public void testUpdateChildsReplacesTheChildren() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        index.put(file("a", "a.txt", "folder"));
+        GFile folder = file("folder", "folder", "root");
+        folder.setDirectory(true);
+        index.updateChilds(folder, Collections.singletonList(file("b", "b.txt", "folder")));
+
+        Assert.assertEquals(1, index.getFiles("folder").size());
+        Assert.assertEquals("b", index.getFiles("folder").get(0).getId());
+        Assert.assertTrue(index.getParents("a").isEmpty());
+    }
+
+    @Test
+    public void testRevisionsAreReadBackAsTheyWereAdded() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        for (String revision : new String[]{"0", "10", "0123", "12345678901234567890", "token-1", null, "token-1"}) {
+            GFile file = file("a", "a.txt", "root");
+            file.setRevision(revision);
+            index.put(file);
+            Assert.assertEquals(revision, index.getFile("a").getRevision());
+        }
+    }
+
+    @Test
+    public void testIdsAndNamesAreReadBackAsTheyWereAdded() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        String[] ids = {"root", "1234567", "12345678", "123456789", "1BxiMVs0XRA5nFMdKvBdBZjgmUUqptlbs74OgvE2upms",
+                "0B-_9xyzABCDEFGHIJKLMNOPQRSTUVWXYZab", "0Bñandú-1234567890", "id with spaces"};
+        String[] names = {".pdf", "a.pdf", "a.pdf.txt", "IMG_0001.JPG", "ñandú.jpeg", "a.PDF", "pdf", ""};
+        for (String id : ids) {
+            for (int i = 0; i < names.length; i++) {
+                index.put(file(id + i, names[i], id));
+            }
+        }
+        for (String id : ids) {
+            Assert.assertEquals(names.length, index.getFiles(id).size());
+            for (int i = 0; i < names.length; i++) {
+                GFile file = index.getFileByName(id, names[i]);
+                Assert.assertEquals(id + i, file.getId());
+                Assert.assertEquals(names[i], file.getName());
+                Assert.assertEquals(Collections.singleton(id), file.getParents());
+            }
+        }
+    }
+
+    @Test
+    public void testArenaIsCompacted() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        for (int i = 0; i < 100000; i++) {
+            // renamed files, checksums that are not stored as raw bytes, and files removed and added again
+            GFile file = file("id" + i % 100, "name" + i, "root");
+            file.setMd5Checksum("not hex " + i);
+            file.setRevision("token " + i);
+            index.put(file);
+            index.remove("removed");
+            index.put(file("removed", "removed.txt", "root"));
+        }
+        Assert.assertTrue("arena size: " + index.getArenaSize(), index.getArenaSize() < 4 * 1024 * 1024);
+        Assert.assertEquals(101, index.getFiles("root").size());
+        GFile last = index.getFileByName("root", "name99999");
+        Assert.assertEquals("id99", last.getId());
+        Assert.assertEquals("not hex 99999", last.getMd5Checksum());
+        Assert.assertEquals("token 99999", last.getRevision());
+        Assert.assertNull(index.getFileByName("root", "name99899"));
+    }
+
+    @Test
+    public void testReplaceChildsReturnsTheOrphans() {
+        CompactTreeIndex index = new CompactTreeIndex();
+        index.replaceChilds("folder", Arrays.asList(child("a"), child("b")));
+        index.replaceChilds("other", Collections.singletonList(child("b")));
+
+        Assert.assertEquals(Collections.singletonList("a"), index.replaceChilds("folder", Collections.singletonList(child("c"))));
+        Assert.assertEquals("c", index.getFileByName("folder", "c.txt").getId());
+        Assert.assertEquals(Collections.singletonList("b"), index.removeChilds("other"));
+        // the folders are only placeholders
+        Assert.assertNull(index.getFile("folder"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DriveRequestExecutorTest {
+
+    private static DriveRequestExecutor newExecutor(int budget) {
+        Map<RetryPolicy.ErrorClass, Integer> maxAttempts = new EnumMap<>(RetryPolicy.ErrorClass.class);
+        maxAttempts.put(RetryPolicy.ErrorClass.SERVER_ERROR, 3);
+        maxAttempts.put(RetryPolicy.ErrorClass.TIMEOUT, 3);
+        return new DriveRequestExecutor(new QuotaGovernor(100000, 1000, 1000),
+                new BackoffRetryPolicy(1, 2, maxAttempts), 10000, budget);
+    }
+
+    private static HttpResponseException httpError(int statusCode) {
+        return new HttpResponseException.Builder(statusCode, "error", new HttpHeaders()).build();
+    }
+
+    @Test
+    public void testServerErrorIsRetried() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        String response = newExecutor(10).execute("test", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw httpError(503);
+            }
+            return "ok";
+        });
+        Assert.assertEquals("ok", response);
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testNotFoundIsNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            newExecutor(10).execute("test", () -> {
+                calls.incrementAndGet();
+                throw httpError(404);
+            });
+            Assert.fail("Exception expected");
+        } catch (IOException e) {
+            Assert.assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testRetryBudgetIsShared() {
+        DriveRequestExecutor executor = newExecutor(1);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            try {
+                executor.execute("test", () -> {
+                    calls.incrementAndGet();
+                    throw new SocketTimeoutException();
+                });
+                Assert.fail("Exception expected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        // first request consumes the only retry available
+        Assert.assertEquals(3, calls.get());
+    }
+}
@@ -0,0 +1,151 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+public class MemoryCacheTest {
+
+    private final Map<String, GFile> files = new HashMap<>();
+
+    private final Map<String, List<String>> childs = new HashMap<>();
+
+    private int reads;
+
+    private MemoryCache memoryCache;
+
+    private MemoryCache smallCache;
+
+    @Before
+    public void setUp() {
+        // database with a folder and 2 files
+        addFile("root", "folder", true);
+        addFile("folder", "a.txt", false);
+        addFile("folder", "b.txt", false);
+
+        // underlying cache backed by the maps above, counting the reads. Like a database, it returns new files every time
+        Cache delegate = (Cache) Proxy.newProxyInstance(Cache.class.getClassLoader(), new Class[]{Cache.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getFile":
+                            reads++;
+                            return files.containsKey(args[0]) ? files.get(args[0]).clone() : null;
+                        case "getFiles":
+                            reads++;
+                            List<GFile> ret = new ArrayList<>();
+                            for (String childId : childs.getOrDefault(args[0], Collections.emptyList())) {
+                                ret.add(files.get(childId).clone());
+                            }
+                            return ret;
+                        case "getFileByName":
+                            reads++;
+                            throw new UnsupportedOperationException();
+                        case "addOrUpdateFiles":
+                            for (Object file : (List<?>) args[0]) {
+                                files.put(((GFile) file).getId(), (GFile) file);
+                            }
+                            return 1;
+                        default:
+                            return null;
+                    }
+                });
+        memoryCache = new MemoryCache(delegate, new Properties());
+        smallCache = new MemoryCache(delegate, configuration("cache.memory.maxFiles", "100"));
+    }
+
+    private static Properties configuration(String key, String value) {
+        Properties configuration = new Properties();
+        configuration.setProperty(key, value);
+        return configuration;
+    }
+
+    private void addFile(String parentId, String name, boolean directory) {
+        GFile file = new GFile(Collections.singleton(parentId), name);
+        file.setId(name);
+        file.setDirectory(directory);
+        files.put(file.getId(), file);
+        childs.computeIfAbsent(parentId, id -> new ArrayList<>()).add(file.getId());
+    }
+
+    @Test
+    public void testPathResolutionIsServedFromMemory() {
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("folder", memoryCache.getFileByName("root", "folder").getId());
+            Assert.assertEquals("a.txt", memoryCache.getFileByName("folder", "a.txt").getId());
+            Assert.assertNull(memoryCache.getFileByName("folder", "c.txt"));
+        }
+        // every folder is listed once
+        Assert.assertEquals(2, reads);
+        Assert.assertTrue(memoryCache.getChildsHitRatio() > 0.9);
+    }
+
+    @Test
+    public void testWritesUpdateMemoryInPlace() {
+        Assert.assertEquals(2, memoryCache.getFiles("folder").size());
+        Assert.assertEquals(0, memoryCache.getFile("a.txt").getSize());
+        int readsBefore = reads;
+
+        GFile file = files.get("a.txt").clone();
+        file.setSize(100);
+        memoryCache.addOrUpdateFile(file);
+
+        GFile added = new GFile(Collections.singleton("folder"), "c.txt");
+        added.setId("c.txt");
+        memoryCache.applyChanges(Collections.singletonList(new GChange("2", "c.txt", false, added)), "2");
+
+        Assert.assertEquals(100, memoryCache.getFile("a.txt").getSize());
+        Assert.assertEquals(100, memoryCache.getFileByName("folder", "a.txt").getSize());
+        Assert.assertEquals("c.txt", memoryCache.getFileByName("folder", "c.txt").getId());
+        Assert.assertEquals(3, memoryCache.getFiles("folder").size());
+        // the folder was not loaded again
+        Assert.assertEquals(readsBefore, reads);
+    }
+
+    @Test
+    public void testMovedAndDeletedFilesLeaveTheFolder() {
+        addFile("root", "other", true);
+        Assert.assertEquals(2, memoryCache.getFiles("folder").size());
+        Assert.assertEquals(0, memoryCache.getFiles("other").size());
+
+        GFile moved = files.get("a.txt").clone();
+        moved.setParents(Collections.singleton("other"));
+        memoryCache.applyChanges(Arrays.asList(new GChange("2", "a.txt", false, moved),
+                new GChange("2", "b.txt", true, null)), "2");
+
+        Assert.assertEquals(0, memoryCache.getFiles("folder").size());
+        Assert.assertNull(memoryCache.getFileByName("folder", "a.txt"));
+        Assert.assertEquals("a.txt", memoryCache.getFileByName("other", "a.txt").getId());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFoldersAreEvicted() {
+        for (int i = 0; i < 10; i++) {
+            addFile("root", "folder" + i, true);
+            for (int j = 0; j < 10; j++) {
+                addFile("folder" + i, "file" + i + "-" + j, false);
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(10, smallCache.getFiles("folder" + i).size());
+        }
+        int readsBefore = reads;
+
+        // the last ones are still in memory, the first ones were evicted
+        Assert.assertEquals("file9-0", smallCache.getFileByName("folder9", "file9-0").getId());
+        Assert.assertEquals(readsBefore, reads);
+        Assert.assertEquals("file0-0", smallCache.getFileByName("folder0", "file0-0").getId());
+        Assert.assertEquals(readsBefore + 1, reads);
+    }
+
+    @Test
+    public void testCachedFilesCantBeModified() {
+        memoryCache.getFile("a.txt").setSize(100);
+        memoryCache.getFiles("folder").get(0).setSize(100);
+
+        Assert.assertEquals(0, memoryCache.getFile("a.txt").getSize());
+        Assert.assertEquals(0, memoryCache.getFiles("folder").get(0).getSize());
+    }
+}
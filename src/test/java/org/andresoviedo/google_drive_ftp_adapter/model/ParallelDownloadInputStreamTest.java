@@ -0,0 +1,96 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParallelDownloadInputStreamTest {
+
+    private final byte[] file = new byte[100000];
+
+    private final AtomicLong sizeChanged = new AtomicLong(-1);
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(file);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRangesAreReassembledInOrder() throws Exception {
+        Assert.assertArrayEquals(Arrays.copyOfRange(file, 1234, file.length), download(1234, file.length));
+        Assert.assertEquals(-1, sizeChanged.get());
+    }
+
+    @Test
+    public void testFileGrewSinceCached() throws Exception {
+        Assert.assertArrayEquals(Arrays.copyOfRange(file, 1234, file.length), download(1234, 50000));
+        Assert.assertEquals(file.length, sizeChanged.get());
+    }
+
+    @Test
+    public void testFileShrankSinceCached() throws Exception {
+        Assert.assertArrayEquals(Arrays.copyOfRange(file, 1234, file.length), download(1234, 200000));
+        Assert.assertEquals(file.length, sizeChanged.get());
+    }
+
+    @Test
+    public void testErrorOfFirstRangeIsThrownBeforeReading() {
+        ParallelDownloadInputStream is = new ParallelDownloadInputStream((start, end) -> {
+            throw new FileNotFoundException("File not found");
+        }, executor, 0, file.length, 4096, 4, sizeChanged::set);
+        try {
+            is.awaitFirstRange();
+            Assert.fail("Expected the error of the first range");
+        } catch (IOException e) {
+            Assert.assertTrue(e instanceof FileNotFoundException);
+        }
+    }
+
+    /**
+     * Download the file, like google does: ranges beyond the end are truncated, and the real size is always returned
+     */
+    private byte[] download(long offset, long cachedSize) throws IOException {
+        ParallelDownloadInputStream is = new ParallelDownloadInputStream((start, end) -> {
+            try {
+                // ranges finish in random order
+                Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (start >= file.length) {
+                return new ParallelDownloadInputStream.Range(new byte[0], file.length);
+            }
+            return new ParallelDownloadInputStream.Range(Arrays.copyOfRange(file, (int) start,
+                    (int) Math.min(end + 1, file.length)), file.length);
+        }, executor, offset, cachedSize, 4096, 4, sizeChanged::set);
+        is.awaitFirstRange();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            received.write(buffer, 0, read);
+        }
+        is.close();
+        return received.toByteArray();
+    }
+}
@@ -0,0 +1,38 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class QuotaGovernorTest {
+
+    @Test
+    public void testBurstDoesntWait() {
+        QuotaGovernor governor = new QuotaGovernor(1000, 5, 10);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue("Request " + i + " should not wait", governor.reserve(1, now) <= 0);
+        }
+        long wait = governor.reserve(1, now);
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(200), wait, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testRateIncreasesUpToQuota() {
+        QuotaGovernor governor = new QuotaGovernor(1000, 5, 10);
+        for (int i = 0; i < 1000; i++) {
+            governor.onSuccess();
+        }
+        Assert.assertEquals(10, governor.getRate(), 0.0001);
+    }
+
+    @Test
+    public void testRateDecreasesOncePerBurstOfErrors() {
+        QuotaGovernor governor = new QuotaGovernor(1000, 8, 10);
+        governor.onRateLimitExceeded();
+        governor.onRateLimitExceeded();
+        governor.onRateLimitExceeded();
+        Assert.assertEquals(4, governor.getRate(), 0.0001);
+    }
+}
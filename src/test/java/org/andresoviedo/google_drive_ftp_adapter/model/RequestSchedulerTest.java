@@ -0,0 +1,99 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class RequestSchedulerTest {
+
+    @Test
+    public void testPermitsAreSharedAsOfWeights() {
+        RequestScheduler scheduler = new RequestScheduler(new QuotaGovernor(1000, 10, 10), new int[]{4, 2, 1}, 5000);
+        for (int i = 0; i < 100; i++) {
+            for (RequestPriority priority : RequestPriority.values()) {
+                scheduler.enqueue(priority, 1, 0);
+            }
+        }
+
+        Map<RequestPriority, Integer> granted = new EnumMap<>(RequestPriority.class);
+        for (int i = 0; i < 70; i++) {
+            RequestScheduler.Ticket ticket = scheduler.next(0);
+            granted.merge(ticket.getPriority(), 1, Integer::sum);
+            scheduler.grant(ticket, 0);
+        }
+        Assert.assertEquals(Integer.valueOf(40), granted.get(RequestPriority.INTERACTIVE));
+        Assert.assertEquals(Integer.valueOf(20), granted.get(RequestPriority.CHANGES));
+        Assert.assertEquals(Integer.valueOf(10), granted.get(RequestPriority.CRAWL));
+    }
+
+    @Test
+    public void testBatchRequestDoesNotBlockInteractiveRequests() {
+        RequestScheduler scheduler = new RequestScheduler(new QuotaGovernor(1000, 10, 10), new int[]{10, 4, 1}, 5000);
+        RequestScheduler.Ticket batch = scheduler.enqueue(RequestPriority.CRAWL, 100, 0);
+        scheduler.grant(scheduler.next(0), 0);
+
+        scheduler.enqueue(RequestPriority.INTERACTIVE, 1, 0);
+        Assert.assertEquals(RequestPriority.INTERACTIVE, scheduler.next(0).getPriority());
+        Assert.assertNotSame(batch, scheduler.next(0));
+    }
+
+    @Test
+    public void testAgingAvoidsStarvation() {
+        RequestScheduler scheduler = new RequestScheduler(new QuotaGovernor(1000, 10, 10), new int[]{1000, 1, 1}, 5000);
+        long now = TimeUnit.SECONDS.toNanos(100);
+        scheduler.enqueue(RequestPriority.CRAWL, 1, now - TimeUnit.SECONDS.toNanos(6));
+        scheduler.enqueue(RequestPriority.INTERACTIVE, 1, now - TimeUnit.SECONDS.toNanos(1));
+
+        Assert.assertEquals(RequestPriority.CRAWL, scheduler.next(now).getPriority());
+    }
+
+    @Test
+    public void testAgedBatchRequestDoesNotBlockInteractiveRequests() {
+        RequestScheduler scheduler = new RequestScheduler(new QuotaGovernor(1000, 10, 10), new int[]{10, 4, 1}, 5000);
+        long now = TimeUnit.SECONDS.toNanos(100);
+        RequestScheduler.Ticket batch = scheduler.enqueue(RequestPriority.CRAWL, 100, now - TimeUnit.SECONDS.toNanos(6));
+        for (int i = 0; i < 10; i++) {
+            scheduler.enqueue(RequestPriority.INTERACTIVE, 1, now);
+        }
+
+        // the aged batch gets one permit, and then it waits its turn like the others
+        Assert.assertSame(batch, scheduler.next(now));
+        scheduler.grant(batch, now);
+        int interactive = 0;
+        for (int i = 0; i < 10; i++) {
+            RequestScheduler.Ticket ticket = scheduler.next(now + i);
+            if (ticket.getPriority() == RequestPriority.INTERACTIVE) {
+                interactive++;
+            }
+            scheduler.grant(ticket, now + i);
+        }
+        Assert.assertEquals(9, interactive);
+    }
+
+    @Test
+    public void testPermitOfInterruptedRequestGoesToTheNextOne() throws Exception {
+        // one request per second
+        RequestScheduler scheduler = new RequestScheduler(new QuotaGovernor(100, 1, 1), new int[]{10, 4, 1}, 5000);
+        scheduler.acquire(RequestPriority.CRAWL, 1);
+
+        Thread interrupted = new Thread(() -> {
+            try {
+                scheduler.acquire(RequestPriority.CRAWL, 1);
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        long start = System.nanoTime();
+        interrupted.start();
+        Thread.sleep(200);
+        interrupted.interrupt();
+        interrupted.join();
+
+        // the permit the dispatcher was waiting for is not lost
+        scheduler.acquire(RequestPriority.INTERACTIVE, 1);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1600));
+    }
+}
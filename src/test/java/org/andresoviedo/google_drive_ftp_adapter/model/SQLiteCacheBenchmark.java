@@ -0,0 +1,115 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Measures the latency of listing folders and looking up files by name and parents in a database of 1M files, with
+ * and without the indexes added by the migrations. The drive has a huge folder of 100k files and the rest of the
+ * files in folders of 1000, all of them with a README.md.
+ * <p>
+ * Run it with: <code>mvn test-compile exec:java
+ * -Dexec.mainClass=org.andresoviedo.google_drive_ftp_adapter.model.SQLiteCacheBenchmark
+ * -Dexec.classpathScope=test -Dexec.args=1000000</code>
+ */
+public final class SQLiteCacheBenchmark {
+
+    private static final int HUGE_FOLDER_FILES = 100000;
+
+    private static final int FOLDER_FILES = 1000;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int folders = 1 + Math.max(1, (files - HUGE_FOLDER_FILES) / FOLDER_FILES);
+
+        File database = File.createTempFile("sqlite-cache-benchmark", ".db");
+        try {
+            SQLiteCache cache = new SQLiteCache(database, new Properties());
+
+            long start = System.currentTimeMillis();
+            GFile root = folder("root", null);
+            List<GFile> rootChilds = new ArrayList<>();
+            for (int i = 0; i < folders; i++) {
+                rootChilds.add(folder("folder" + i, "root"));
+            }
+            cache.updateChilds(root, rootChilds);
+            for (int i = 0; i < folders; i++) {
+                int count = i == 0 ? HUGE_FOLDER_FILES : FOLDER_FILES;
+                List<GFile> childs = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    GFile file = new GFile(Collections.singleton("folder" + i), j == 0 ? "README.md" : "file " + j + ".txt");
+                    file.setId("file" + i + "-" + j);
+                    childs.add(file);
+                }
+                cache.updateChilds(rootChilds.get(i), childs);
+            }
+            System.out.println("Database with " + (HUGE_FOLDER_FILES + (folders - 1) * FOLDER_FILES) + " files created in "
+                    + (System.currentTimeMillis() - start) + " millis");
+
+            // like a database created before the migrations
+            execute(database, "drop index idx_childs_parent", "delete from sqlite_stat1");
+            run("Without indexes", cache, folders);
+
+            execute(database, "create index idx_childs_parent on childs (parentId, childId)", "analyze");
+            run("With indexes", cache, folders);
+        } finally {
+            for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                new File(database.getPath() + suffix).delete();
+            }
+        }
+    }
+
+    private static void run(String title, SQLiteCache cache, int folders) {
+        System.out.println(title + ":");
+        final Random random = new Random(1);
+        measure("  list folder of " + FOLDER_FILES, 20,
+                i -> check(cache.getFiles("folder" + (1 + random.nextInt(folders - 1))).size() == FOLDER_FILES));
+        measure("  file by name in folder of " + FOLDER_FILES, 20,
+                i -> check(cache.getFileByName("folder" + (1 + random.nextInt(folders - 1)), "file 10.txt") != null));
+        measure("  file by name in folder of " + HUGE_FOLDER_FILES, 20,
+                i -> check(cache.getFileByName("folder0", "file " + (1 + random.nextInt(HUGE_FOLDER_FILES - 1)) + ".txt") != null));
+        measure("  README.md in folder of " + FOLDER_FILES, 20,
+                i -> check(cache.getFileByName("folder" + (1 + random.nextInt(folders - 1)), "README.md") != null));
+        measure("  parents of file", 20,
+                i -> check(cache.getParents("file" + (1 + random.nextInt(folders - 1)) + "-1").size() == 1));
+    }
+
+    private static void measure(String title, int times, IntConsumer operation) {
+        // warm up
+        operation.accept(-1);
+        long start = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            operation.accept(i);
+        }
+        System.out.println(String.format("%-40s %10.3f millis", title, (System.nanoTime() - start) / times / 1e6));
+    }
+
+    private static void execute(File database, String... queries) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+             Statement statement = connection.createStatement()) {
+            for (String query : queries) {
+                statement.executeUpdate(query);
+            }
+        }
+    }
+
+    private static GFile folder(String id, String parentId) {
+        GFile folder = new GFile(parentId == null ? Collections.emptySet() : Collections.singleton(parentId), id);
+        folder.setId(id);
+        folder.setDirectory(true);
+        folder.setRevision("1");
+        return folder;
+    }
+
+    private static void check(boolean condition) {
+        if (!condition) {
+            throw new IllegalStateException("Unexpected result");
+        }
+    }
+}
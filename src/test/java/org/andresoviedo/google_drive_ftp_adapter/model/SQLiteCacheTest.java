@@ -0,0 +1,137 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class SQLiteCacheTest {
+
+    private File database;
+
+    @Before
+    public void setUp() throws IOException {
+        database = File.createTempFile("sqlite-cache", ".db");
+    }
+
+    @After
+    public void tearDown() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(database.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void testMigratesExistingDatabase() throws SQLException {
+        // database created before the migrations
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create table files (id text, revision text, filename text not null, isDirectory boolean, "
+                    + "size integer, lastModified integer, mimeType text, md5Checksum text, primary key (id))");
+            statement.executeUpdate("create table childs (id integer primary key, childId text references files(id), "
+                    + "parentId text references files(id), unique (childId, parentId))");
+            statement.executeUpdate("create table parameters (id text, value text, primary key (id))");
+            statement.executeUpdate("create index idx_filename on files (filename)");
+            statement.executeUpdate("insert into files (id,filename,isDirectory) values ('a','a.txt',0)");
+            statement.executeUpdate("insert into childs (childId,parentId) values ('a','root')");
+        }
+
+        SQLiteCache cache = new SQLiteCache(database, new Properties());
+
+        Assert.assertEquals("a", cache.getFileByName("root", "a.txt").getId());
+        Assert.assertEquals(Collections.singleton("root"), cache.getParents("a"));
+        Assert.assertTrue(cache.getCrawlFrontier(10).isEmpty());
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            Assert.assertEquals(4, query(statement, "pragma user_version"));
+            Assert.assertEquals(1, query(statement, "select count(*) from sqlite_master where name='idx_childs_parent'"));
+        }
+
+        // nothing to migrate the second time
+        Assert.assertEquals("a", new SQLiteCache(database, new Properties()).getFile("a").getId());
+    }
+
+    @Test
+    public void testCrawlFrontierDoesNotSplitGroups() {
+        SQLiteCache cache = new SQLiteCache(database, new Properties());
+        cache.addToCrawlFrontier(Arrays.asList("a", "b", "c", "d", "e"));
+        cache.saveCrawlPage("a", Arrays.asList("a", "b", "c"), Collections.emptyList(), "page2");
+
+        // the group doesn't fit, but it's not split
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), folderIds(cache.getCrawlFrontier(2)));
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), folderIds(cache.getCrawlFrontier(4)));
+    }
+
+    @Test
+    public void testFailedGroupsAreRetriedWithBackoff() {
+        SQLiteCache cache = new SQLiteCache(database, new Properties());
+        cache.addToCrawlFrontier(Arrays.asList("a", "b", "c", "d"));
+        cache.saveCrawlPage("a", Arrays.asList("a", "b"), Collections.emptyList(), "page2");
+        final long now = System.currentTimeMillis();
+
+        // failed group is skipped until the backoff elapses
+        cache.failCrawl(Arrays.asList("a", "b"), 1000, 60000, now);
+        Assert.assertEquals(Arrays.asList("c", "d"), folderIds(cache.getCrawlFrontier(4, now + 999)));
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), folderIds(cache.getCrawlFrontier(4, now + 1000)));
+
+        // backoff doubles on every failure in a row, up to the max
+        cache.failCrawl(Arrays.asList("a", "b"), 1000, 60000, now);
+        Assert.assertEquals(Arrays.asList("c", "d"), folderIds(cache.getCrawlFrontier(4, now + 1999)));
+        for (int i = 0; i < 40; i++) {
+            cache.failCrawl(Arrays.asList("a", "b"), 1000, 60000, now);
+        }
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), folderIds(cache.getCrawlFrontier(4, now + 60000)));
+
+        // it's never given up, and a page listed resets the count
+        cache.saveCrawlPage("a", Arrays.asList("a", "b"), Collections.emptyList(), "page3");
+        Assert.assertEquals(0, cache.getCrawlFrontier(4, now).get(0).getRetries());
+        Assert.assertEquals("page3", cache.getCrawlFrontier(4, now).get(0).getPageToken());
+    }
+
+    @Test
+    public void testAsyncWritesAreDoneInOrder() {
+        SQLiteCache cache = new SQLiteCache(database, new Properties());
+        cache.addToCrawlFrontier(Collections.singletonList("root"));
+        GFile file = new GFile(Collections.singleton("root"), "a.txt");
+        file.setId("a");
+        file.setRevision("1");
+        GFile renamed = file.clone();
+        renamed.setName("b.txt");
+
+        cache.saveCrawlPageAsync("root", Collections.singletonList("root"), Collections.singletonList(file), "page2");
+        cache.applyChangesAsync(Collections.singletonList(new GChange("2", "a", false, renamed)), "2").join();
+
+        Assert.assertEquals("b.txt", cache.getFile("a").getName());
+        Assert.assertEquals("2", cache.getRevision());
+        Assert.assertEquals("page2", cache.getCrawlFrontier(10).get(0).getPageToken());
+    }
+
+    private static List<String> folderIds(List<CrawlFrontierEntry> entries) {
+        List<String> ret = new ArrayList<>();
+        for (CrawlFrontierEntry entry : entries) {
+            ret.add(entry.getFolderId());
+        }
+        return ret;
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+    }
+
+    private static int query(Statement statement, String sql) throws SQLException {
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            return rs.getInt(1);
+        }
+    }
+}
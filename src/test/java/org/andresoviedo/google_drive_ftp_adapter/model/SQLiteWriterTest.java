@@ -0,0 +1,90 @@
+package org.andresoviedo.google_drive_ftp_adapter.model;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class SQLiteWriterTest {
+
+    private File database;
+
+    private SQLiteWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        database = File.createTempFile("sqlite-writer", ".db");
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // wait long enough for all the mutations of a test to be in the same transaction
+        writer = new SQLiteWriter("jdbc:sqlite:" + database.getPath(), config, 200, 1000);
+        writer.execute(Collections.singletonList(new SQLiteWriter.Batch("create table t (id integer primary key)", null)));
+    }
+
+    @After
+    public void tearDown() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(database.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentMutationsAreCommittedTogether() throws Exception {
+        long transactions = writer.getTransactions();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(writer.submit(Collections.singletonList(insert(2 * i, 2 * i + 1))));
+        }
+        for (CompletableFuture<Integer> result : results) {
+            Assert.assertEquals(2, (int) result.get());
+        }
+        Assert.assertEquals(1, writer.getTransactions() - transactions);
+        Assert.assertEquals(20, count());
+    }
+
+    @Test
+    public void testFailedMutationDoesntFailTheOthers() throws Exception {
+        CompletableFuture<Integer> first = writer.submit(Collections.singletonList(insert(1)));
+        // id 1 is already inserted, so the whole mutation (id 2 too) must be rolled back
+        CompletableFuture<Integer> failed = writer.submit(Collections.singletonList(insert(2, 1)));
+        CompletableFuture<Integer> last = writer.submit(Collections.singletonList(insert(3)));
+
+        Assert.assertEquals(1, (int) first.get());
+        Assert.assertEquals(1, (int) last.get());
+        try {
+            failed.get();
+            Assert.fail("mutation should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLException);
+        }
+        Assert.assertEquals(2, count());
+    }
+
+    private static SQLiteWriter.Batch insert(int... ids) {
+        List<Object[]> args = new ArrayList<>();
+        for (int id : ids) {
+            args.add(new Object[]{id});
+        }
+        return new SQLiteWriter.Batch("insert into t (id) values (?)", args);
+    }
+
+    private int count() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+             ResultSet rs = connection.createStatement().executeQuery("select count(*) from t")) {
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.andresoviedo.util.concurrent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsShareResult() throws Exception {
+        final SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(ArrayList::new, 10);
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<String> leaderResult = new ArrayList<>();
+        leaderResult.add("a");
+        CompletableFuture<List<String>> leader = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            executions.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return leaderResult;
+        }));
+        while (executions.get() == 0) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<List<String>> follower = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            executions.incrementAndGet();
+            return new ArrayList<>();
+        }));
+        while (singleFlight.getShared() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        // every caller gets its own copy, so they can modify it
+        Assert.assertEquals(leaderResult, leader.get());
+        Assert.assertNotSame(leaderResult, leader.get());
+        Assert.assertEquals(leaderResult, follower.get());
+        Assert.assertNotSame(leaderResult, follower.get());
+        Assert.assertNotSame(leader.get(), follower.get());
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(Long.valueOf(1), singleFlight.getSharedPerKey().get("key"));
+
+        // call completed, so it's executed again
+        singleFlight.execute("key", () -> {
+            executions.incrementAndGet();
+            return null;
+        });
+        Assert.assertEquals(2, executions.get());
+        Assert.assertEquals(3, singleFlight.getCalls());
+    }
+
+    @Test
+    public void testCallsInOtherLaneAreNotShared() throws Exception {
+        final ThreadLocal<String> lane = ThreadLocal.withInitial(() -> "interactive");
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(value -> value, lane::get, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> background = CompletableFuture.supplyAsync(() -> {
+            lane.set("background");
+            return singleFlight.execute("key", () -> {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "background";
+            });
+        });
+        started.await(5, TimeUnit.SECONDS);
+
+        // the interactive caller doesn't wait for the background call
+        Assert.assertEquals("interactive", singleFlight.execute("key", () -> "interactive"));
+        release.countDown();
+        Assert.assertEquals("background", background.get());
+        Assert.assertEquals(0, singleFlight.getShared());
+    }
+
+    @Test
+    public void testKeysSharedTheLeastAreDroppedWhenFull() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(value -> value, 4);
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j <= i * 2; j++) {
+                singleFlight.countShared("key" + i);
+            }
+        }
+
+        // new keys are still counted
+        singleFlight.countShared("new");
+        Map<String, Long> sharedPerKey = singleFlight.getSharedPerKey();
+        Assert.assertEquals(3, sharedPerKey.size());
+        Assert.assertEquals(Long.valueOf(2), sharedPerKey.get("key2"));
+        Assert.assertEquals(Long.valueOf(3), sharedPerKey.get("key3"));
+        Assert.assertEquals(Long.valueOf(1), sharedPerKey.get("new"));
+        Assert.assertEquals(17, singleFlight.getShared());
+    }
+}
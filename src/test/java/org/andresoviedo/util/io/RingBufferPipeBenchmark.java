@@ -0,0 +1,67 @@
+package org.andresoviedo.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares the upload throughput of {@link RingBufferPipe} vs the jdk piped streams. The writer simulates the ftp
+ * data connection (64KB writes) and the reader simulates the upload (8MB chunks).
+ * <p>
+ * Run it with: <code>mvn test-compile exec:java -Dexec.mainClass=org.andresoviedo.util.io.RingBufferPipeBenchmark
+ * -Dexec.classpathScope=test</code>
+ */
+public final class RingBufferPipeBenchmark {
+
+    private static final long TOTAL_BYTES = 1024L * 1024 * 1024;
+
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private static final int READ_SIZE = 8 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            PipedOutputStream pipedOutputStream = new PipedOutputStream();
+            PipedInputStream pipedInputStream = new PipedInputStream(pipedOutputStream);
+            report("PipedInputStream (1KB)", run(pipedOutputStream, pipedInputStream));
+
+            RingBufferPipe pipe = new RingBufferPipe();
+            report("RingBufferPipe (1MB)", run(pipe.getOutputStream(), pipe.getInputStream()));
+        }
+    }
+
+    private static long run(OutputStream os, InputStream is) throws Exception {
+        final long start = System.nanoTime();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            byte[] data = new byte[WRITE_SIZE];
+            try (OutputStream out = os) {
+                for (long written = 0; written < TOTAL_BYTES; written += data.length) {
+                    out.write(data);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] chunk = new byte[READ_SIZE];
+        long total = 0;
+        try (InputStream in = is) {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                total += read;
+            }
+        }
+        writer.get();
+        if (total != TOTAL_BYTES) {
+            throw new IllegalStateException("Expected " + TOTAL_BYTES + " but read " + total);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%-25s %8.2f MB/s", name, TOTAL_BYTES / 1024.0 / 1024.0 / seconds));
+    }
+}
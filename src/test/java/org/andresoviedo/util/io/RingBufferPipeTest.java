@@ -0,0 +1,51 @@
+package org.andresoviedo.util.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class RingBufferPipeTest {
+
+    @Test
+    public void testTransferWrapsAroundBuffer() throws Exception {
+        final byte[] data = new byte[1000 * 1000];
+        new Random(1).nextBytes(data);
+
+        RingBufferPipe pipe = new RingBufferPipe(4096);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try (OutputStream os = pipe.getOutputStream()) {
+                for (int i = 0; i < data.length; i += 3000) {
+                    os.write(data, i, Math.min(3000, data.length - i));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        byte[] received = new byte[data.length];
+        int total = 0;
+        try (InputStream is = pipe.getInputStream()) {
+            int read;
+            while ((read = is.read(received, total, Math.min(5000, received.length - total))) > 0) {
+                total += read;
+            }
+            Assert.assertEquals(-1, is.read());
+        }
+        writer.get();
+
+        Assert.assertEquals(data.length, total);
+        Assert.assertArrayEquals(data, received);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteFailsWhenReaderIsClosed() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.getInputStream().close();
+        pipe.getOutputStream().write(new byte[32]);
+    }
+}